@@ -4,6 +4,7 @@ import org.neu.protocol.Message;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Client remote api
@@ -19,4 +20,14 @@ public interface Client extends Remote {
      */
     void setResponse(String serverId, String response, Message message) throws RemoteException;
 
+    /**
+     * Use for coordinator to tell a subscribed client the keys changed by the commits acknowledged by the servers
+     *
+     * @param keys the changed keys
+     * @param lsn  log sequence number of the latest of the commits
+     * @param time the time in milliseconds the earliest of the commits was acknowledged
+     * @throws RemoteException remote exception
+     */
+    void invalidate(List<String> keys, long lsn, long time) throws RemoteException;
+
 }
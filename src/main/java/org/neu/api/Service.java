@@ -1,9 +1,15 @@
 package org.neu.api;
 
+import org.neu.partition.HashRing;
 import org.neu.protocol.Message;
+import org.neu.protocol.Result;
+import org.neu.protocol.ScanPage;
+import org.neu.protocol.SnapshotChunk;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -21,6 +27,40 @@ public interface Service extends Remote {
      */
     String doGet(UUID clientId, String key) throws RemoteException;
 
+    /**
+     * Process get request of several keys in one call.
+     *
+     * @param keys the keys to be found in storage
+     * @return the value of each key present in storage, the absent keys are left out
+     * @throws RemoteException remote exception
+     */
+    Map<String, String> doGetAll(Collection<String> keys) throws RemoteException;
+
+    /**
+     * Scan a range of keys page by page, the next page is got by the continuation token of the page
+     * with the same range. The scan does not block writes, an entity written during the scan may or may not be seen.
+     *
+     * @param start the first key of the range, null to start from the smallest key
+     * @param end   the key after the range, null to scan to the largest key
+     * @param token the continuation token of the previous page, null for the first page
+     * @param limit max number of entities of the page, the server may return fewer
+     * @return the page
+     * @throws RemoteException remote exception
+     */
+    ScanPage scan(String start, String end, String token, int limit) throws RemoteException;
+
+    /**
+     * Scan the keys starting with a prefix page by page, the next page is got by the continuation token of the page
+     * with the same prefix
+     *
+     * @param prefix the prefix of the keys
+     * @param token  the continuation token of the previous page, null for the first page
+     * @param limit  max number of entities of the page, the server may return fewer
+     * @return the page
+     * @throws RemoteException remote exception
+     */
+    ScanPage scanPrefix(String prefix, String token, int limit) throws RemoteException;
+
     /**
      * Process put request.
      *
@@ -37,6 +77,35 @@ public interface Service extends Remote {
      */
     void doDelete(Message message, String hostname, int port) throws RemoteException;
 
+    /**
+     * Process put or delete request and wait for its outcome, the client needs no registry for the response
+     *
+     * @param message message
+     * @return the outcome of the request
+     * @throws RemoteException remote exception, or the outcome is not known in time
+     */
+    Result write(Message message) throws RemoteException;
+
+    /**
+     * Process several put or delete requests in one transaction round and wait for their outcomes,
+     * each message is voted and decided separately
+     *
+     * @param messages messages
+     * @return the outcome of each request in the order of the messages
+     * @throws RemoteException remote exception, or some outcome is not known in time
+     */
+    List<Result> writeAll(List<Message> messages) throws RemoteException;
+
+    /**
+     * Subscribe a client to the keys changed by each commit, the changes are sent by the coordinator
+     *
+     * @param hostname hostname of the client
+     * @param port     port of the client registry
+     * @return true if the client was not subscribed, the invalidations before it are lost
+     * @throws RemoteException remote exception
+     */
+    boolean subscribe(String hostname, int port) throws RemoteException;
+
     /**
      * Receive a call from the coordinator and prepare for the transaction
      *
@@ -45,6 +114,18 @@ public interface Service extends Remote {
      */
     void prepare(Message message) throws RemoteException;
 
+    /**
+     * Receive a call from the coordinator and prepare for the transaction in pipelined mode,
+     * the decisions of earlier transactions ride along and are applied before voting
+     *
+     * @param message message to be transacted
+     * @param commits earlier messages decided to commit
+     * @param aborts  earlier messages decided to abort
+     * @return ids of the earlier messages applied, which are the acks of their decisions
+     * @throws RemoteException remote exception
+     */
+    List<UUID> prepare(Message message, List<Message> commits, List<Message> aborts) throws RemoteException;
+
     /**
      * Receive a call from the coordinator and commit the data in this transaction
      *
@@ -61,6 +142,53 @@ public interface Service extends Remote {
      */
     void abort(Message message) throws RemoteException;
 
+    /**
+     * Receive a batch from the coordinator and vote for each message of it in one round,
+     * a message on a key already locked by an earlier message of the batch is rejected
+     *
+     * @param messages messages to be transacted
+     * @return the vote of each message by message id, true for commit and false for abort
+     * @throws RemoteException remote exception
+     */
+    Map<UUID, Boolean> prepareBatch(List<Message> messages) throws RemoteException;
+
+    /**
+     * Receive a batch from the coordinator and commit the messages in order, returning is the ack
+     *
+     * @param messages messages to be committed
+     * @throws RemoteException remote exception
+     */
+    void commitBatch(List<Message> messages) throws RemoteException;
+
+    /**
+     * Receive a batch from the coordinator and abort the messages, returning is the ack
+     *
+     * @param messages messages to be aborted
+     * @throws RemoteException remote exception
+     */
+    void abortBatch(List<Message> messages) throws RemoteException;
+
+    /**
+     * Receive a batch from the coordinator when this server is the only participant of every message of it,
+     * each message is voted and the accepted ones are applied in the same call, so the vote is the decision.
+     * The rejected messages are aborted without a log record.
+     *
+     * @param messages messages to be transacted
+     * @return the outcome of each message by message id, true if committed
+     * @throws RemoteException remote exception
+     */
+    Map<UUID, Boolean> commitOnePhase(List<Message> messages) throws RemoteException;
+
+    /**
+     * Receive the outcome of a request sent to this server from the coordinator, the server cannot tell
+     * the outcome by itself when it does not own every key of the request
+     *
+     * @param result  the outcome
+     * @param message message of the request
+     * @throws RemoteException remote exception
+     */
+    void deliver(Result result, Message message) throws RemoteException;
+
     /**
      * Use for client to get the identity of the server
      *
@@ -70,11 +198,39 @@ public interface Service extends Remote {
     String getId() throws RemoteException;
 
     /**
-     * Use for the server to synchronize data with the coordinator when the server is absent in transactions
+     * Use for client to find the servers owning each key
+     *
+     * @return the current ring of the servers
+     * @throws RemoteException remote exception
+     */
+    HashRing getRing() throws RemoteException;
+
+    /**
+     * Use for client to see how often the coordinators took each path of the protocol
+     *
+     * @return the value of each counter by name, summed over the coordinators
+     * @throws RemoteException remote exception
+     */
+    Map<String, Long> getCounters() throws RemoteException;
+
+    /**
+     * Use for the server to catch up with the commits it missed when it was absent in transactions
+     *
+     * @param messages the committed messages in the order of their log sequence numbers
+     * @throws RemoteException remote exception
+     */
+    void catchUp(List<Message> messages) throws RemoteException;
+
+    /**
+     * Use for the server to synchronize data with the coordinator when the server is absent in transactions,
+     * the data is sent chunk by chunk and the next chunk is sent only after the previous one is stored.
+     * A chunk sent again after a lost reply is not stored twice. The data is saved to a snapshot before the last chunk
+     * is acknowledged, and if the chunks hold the whole data the keys not sent are deleted.
      *
-     * @param data the transaction data to be synchronized
+     * @param chunk the chunk of the data to be synchronized
+     * @return the number of entities of the synchronization stored so far, the offset of the next chunk
      * @throws RemoteException remote exception
      */
-    void sync(Map<String, String> data) throws RemoteException;
+    long syncChunk(SnapshotChunk chunk) throws RemoteException;
 }
 
@@ -1,9 +1,13 @@
 package org.neu.api;
 
+import org.neu.partition.HashRing;
 import org.neu.protocol.Message;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 public interface Transaction extends Remote {
 
@@ -16,6 +20,16 @@ public interface Transaction extends Remote {
      */
     void requirePrepare(String serverId, Message message) throws RemoteException;
 
+    /**
+     * Called when a server requires to start one transaction round for a batch of messages,
+     * each message is voted separately and the accepted ones are committed together
+     *
+     * @param serverId id of the server
+     * @param messages messages to be transacted
+     * @throws RemoteException remote exception
+     */
+    void requirePrepareBatch(String serverId, List<Message> messages) throws RemoteException;
+
     /**
      * Called when a server accepts the prepare request
      *
@@ -44,7 +58,7 @@ public interface Transaction extends Remote {
     void ackCommit(String serverId, Message message) throws RemoteException;
 
     /**
-     * Called when a server aborted the data
+     * Called when a server aborted the data, the coordinator presumes an abort and does not wait for it
      *
      * @param serverId id of the server
      * @param message aborted message
@@ -54,13 +68,54 @@ public interface Transaction extends Remote {
 
     /**
      * Use for server register itself on the coordinator, if the server is found absent in transactions
-     * it will trigger the synchronization thread
+     * it will trigger the synchronization thread, which only sends the commits the server missed
      *
      * @param serverId id of the server
      * @param ip ip of the server
      * @param port port of the server
+     * @param lastLsn log sequence number of the latest commit applied by the server
+     * @param coordinators number of coordinators the server registers at, each one sees only the commits of its slice
+     * @throws RemoteException remote exception
+     */
+    void register(String serverId, String ip, int port, long lastLsn, int coordinators) throws RemoteException;
+
+    /**
+     * Use for server to resolve the messages it prepared before a restart without a decision in its log,
+     * a message decided by the coordinator is committed or aborted by the server, a message still being decided
+     * is left out and its decision is sent as usual. A message the coordinator has no commit of is presumed aborted.
+     *
+     * @param serverId id of the server
+     * @param messages the messages in doubt
+     * @return the outcome of each decided message by message id, true for commit
+     * @throws RemoteException remote exception
+     */
+    Map<UUID, Boolean> resolve(String serverId, List<Message> messages) throws RemoteException;
+
+    /**
+     * Use for client to receive the keys changed by each commit, a client that cannot be reached is dropped
+     * and has to subscribe again
+     *
+     * @param hostname hostname of the client
+     * @param port     port of the client registry
+     * @return true if the client was not subscribed, the invalidations before it are lost
+     * @throws RemoteException remote exception
+     */
+    boolean subscribe(String hostname, int port) throws RemoteException;
+
+    /**
+     * Use for server to tell the clients the servers owning each key
+     *
+     * @return the current ring of the servers
+     * @throws RemoteException remote exception
+     */
+    HashRing getRing() throws RemoteException;
+
+    /**
+     * Use for server to tell the clients how often each path of the protocol was taken
+     *
+     * @return the value of each counter by name
      * @throws RemoteException remote exception
      */
-    void register(String serverId, String ip, int port) throws RemoteException;
+    Map<String, Long> getCounters() throws RemoteException;
 
 }
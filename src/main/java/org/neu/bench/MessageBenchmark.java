@@ -0,0 +1,103 @@
+package org.neu.bench;
+
+import org.neu.protocol.Message;
+import org.neu.protocol.Type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Benchmark of the message wire format, report the serialized size and the round trips per second
+ * of the binary layout against the default serialization the message used before
+ */
+public class MessageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Message message = new Message(UUID.randomUUID(), Type.PUT, "key-0001", "value-0001", UUID.randomUUID(), 42);
+        DefaultMessage baseline = new DefaultMessage(message);
+        if (!roundTrip(message).equals(message) || !roundTrip(message).toString().equals(message.toString())) {
+            throw new IllegalStateException("The binary layout does not restore the message");
+        }
+        System.out.println("Rounds: " + rounds);
+        report("default", baseline, rounds);
+        report("binary", message, rounds);
+    }
+
+    /**
+     * Measure one format, warm up first with the same number of rounds
+     *
+     * @param name   name of the format
+     * @param object the object to be serialized
+     * @param rounds number of round trips
+     */
+    private static void report(String name, Object object, int rounds) throws Exception {
+        int size = serialize(object).length;
+        run(object, rounds);
+        long start = System.nanoTime();
+        run(object, rounds);
+        double rate = rounds / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("%-8s %6d bytes %12.0f round trips/s%n", name, size, rate);
+    }
+
+    private static void run(Object object, int rounds) throws Exception {
+        for (int i = 0; i < rounds; i++) {
+            deserialize(serialize(object));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T object) throws Exception {
+        return (T) deserialize(serialize(object));
+    }
+
+    /**
+     * Serialize an object in its own stream like an argument of a remote call
+     *
+     * @param object the object
+     * @return the bytes
+     * @throws IOException error in serializing
+     */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * The fields of a message written by the default serialization, as the message was before
+     */
+    private static class DefaultMessage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final UUID messageId;
+        private final Type type;
+        private final String key;
+        private final String value;
+        private final UUID clientId;
+        private final long lsn;
+
+        private DefaultMessage(Message message) {
+            this.messageId = message.getMessageId();
+            this.type = message.getType();
+            this.key = message.getKey();
+            this.value = message.getValue();
+            this.clientId = message.getClientId();
+            this.lsn = message.getLsn();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.neu.bench;
+
+import org.neu.db.DB;
+import org.neu.db.ReadView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Benchmark of the reads of several keys at one point while commits are flowing, report the reads per second
+ * of the views of the database against readers sharing a lock with the writers, with and without writers
+ */
+public class MvccBenchmark {
+
+    // number of keys read together
+    private static final int KEYS_PER_READ = 10;
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        long millis = args.length > 3 ? Long.parseLong(args[3]) : 3000;
+        DB db = new DB();
+        for (int i = 0; i < keys; i++) {
+            db.put("key" + i, "value" + i);
+        }
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        System.out.println("Readers: " + readers + ", keys per read: " + KEYS_PER_READ + ", keys: " + keys);
+        // warm up both ways before measuring either
+        measure(db, null, readers, writers, keys, millis);
+        measure(db, lock, readers, writers, keys, millis);
+        for (int w : new int[]{0, writers}) {
+            report("view", db, null, readers, w, keys, millis);
+            report("locked", db, lock, readers, w, keys, millis);
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, DB db, ReadWriteLock lock, int readers, int writers, int keys, long millis) throws Exception {
+        long[] counts = measure(db, lock, readers, writers, keys, millis);
+        System.out.printf("%-6s writers %2d %12.0f reads/s %12.0f commits/s   %d views open%n",
+                name, writers, counts[0] * 1000.0 / millis, counts[1] * 1000.0 / millis, db.getViews());
+    }
+
+    /**
+     * Run the readers and the writers for a while, the readers read the keys in a view of the database
+     * or in the latest data under the read lock if a lock is given, the writers write under the write lock then
+     *
+     * @return the number of reads and the number of commits
+     */
+    private static long[] measure(DB db, ReadWriteLock lock, int readers, int writers, int keys, long millis) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(readers + writers + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong commits = new AtomicLong();
+        for (int t = 0; t < writers; t++) {
+            executor.execute(() -> {
+                Random random = new Random();
+                while (running.get()) {
+                    String key = "key" + random.nextInt(keys);
+                    if (lock != null) {
+                        lock.writeLock().lock();
+                    }
+                    try {
+                        db.put(key, "value" + random.nextInt());
+                    } finally {
+                        if (lock != null) {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                    commits.incrementAndGet();
+                }
+            });
+        }
+        // drop the old versions like a server does
+        executor.execute(() -> {
+            while (running.get()) {
+                db.collect();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        List<Future<Long>> reads = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            reads.add(executor.submit(() -> {
+                Random random = new Random();
+                long count = 0;
+                while (running.get()) {
+                    int first = random.nextInt(keys - KEYS_PER_READ);
+                    if (lock == null) {
+                        try (ReadView view = db.openView()) {
+                            String before = view.get("key" + first);
+                            for (int i = 1; i < KEYS_PER_READ; i++) {
+                                view.get("key" + (first + i));
+                            }
+                            // a view never sees a later commit
+                            if (!before.equals(view.get("key" + first))) {
+                                throw new IllegalStateException("The view of sequence " + view.getSequence() + " changed");
+                            }
+                        }
+                    } else {
+                        lock.readLock().lock();
+                        try {
+                            for (int i = 0; i < KEYS_PER_READ; i++) {
+                                db.get("key" + (first + i));
+                            }
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    }
+                    count++;
+                }
+                return count;
+            }));
+        }
+        Thread.sleep(millis);
+        running.set(false);
+        long total = 0;
+        for (Future<Long> read : reads) {
+            total += read.get();
+        }
+        executor.shutdown();
+        return new long[]{total, commits.get()};
+    }
+}
@@ -0,0 +1,51 @@
+package org.neu.bench;
+
+import org.neu.partition.HashRing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark of the hash ring, report the share of the keys changing owners when a server joins
+ * and the spread of the keys over the servers, with the lookups per second
+ */
+public class RingBenchmark {
+
+    public static void main(String[] args) {
+        int servers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int replicas = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int virtualNodes = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        int keys = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            members.add("server" + i);
+        }
+        HashRing ring = new HashRing(members, replicas, virtualNodes);
+        HashRing grown = ring.with("server" + servers);
+        System.out.println("Servers: " + servers + ", replication factor: " + replicas + ", virtual nodes: " + virtualNodes + ", keys: " + keys);
+        Map<String, Integer> load = new HashMap<>();
+        long moved = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            String key = "key" + i;
+            List<String> before = ring.owners(key);
+            List<String> after = grown.owners(key);
+            before.forEach((member) -> load.merge(member, 1, Integer::sum));
+            // each copy the new server takes is a copy moved
+            for (String member : after) {
+                if (!before.contains(member)) {
+                    moved++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("lookups: %.0f /s%n", keys * 2 * 1e9 / elapsed);
+        System.out.printf("copies moved by a joining server: %.2f%% (ideal %.2f%%)%n",
+                moved * 100.0 / ((long) keys * replicas), 100.0 / (servers + 1));
+        int min = load.values().stream().min(Integer::compare).orElse(0);
+        int max = load.values().stream().max(Integer::compare).orElse(0);
+        System.out.printf("copies per server: min %d max %d mean %.0f%n", min, max, (double) keys * replicas / servers);
+    }
+}
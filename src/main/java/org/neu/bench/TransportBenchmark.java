@@ -0,0 +1,121 @@
+package org.neu.bench;
+
+import org.neu.protocol.Message;
+import org.neu.protocol.Type;
+import org.neu.transport.NioTransport;
+import org.neu.transport.RmiTransport;
+import org.neu.transport.Transport;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loopback benchmark of the transports, concurrent callers share one stub and each call echoes a message,
+ * report the calls per second and the p99 latency of each transport
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 18500;
+        System.out.println("Threads: " + threads + ", calls per thread: " + calls);
+        Echo rmi = export(new RmiTransport(), port);
+        Echo nio = export(new NioTransport(30000, 256), port + 1);
+        // warm up both transports before measuring either
+        for (int round = 0; round < 3; round++) {
+            measure(rmi, threads, calls);
+            measure(nio, threads, calls);
+        }
+        report("rmi", rmi, threads, calls);
+        report("nio", nio, threads, calls);
+        System.exit(0);
+    }
+
+    /**
+     * Export an echo api by the transport and look it up
+     *
+     * @param transport the transport
+     * @param port      the port to export on
+     * @return the stub
+     */
+    private static Echo export(Transport transport, int port) throws Exception {
+        transport.export(port, "Echo", Echo.class, new EchoImp());
+        return transport.lookup("localhost", port, "Echo", Echo.class);
+    }
+
+    /**
+     * Measure the calls of concurrent callers and print the result
+     *
+     * @param name    name of the transport
+     * @param echo    the stub
+     * @param threads number of concurrent callers
+     * @param calls   number of calls of each caller
+     */
+    private static void report(String name, Echo echo, int threads, int calls) throws Exception {
+        long start = System.nanoTime();
+        long[] latencies = measure(echo, threads, calls);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        double p99 = latencies[(int) (latencies.length * 0.99)] / 1e3;
+        System.out.printf("%-4s %12.0f calls/s   p99 %8.0f us%n", name, latencies.length / elapsed, p99);
+    }
+
+    /**
+     * Call the echo api from concurrent callers
+     *
+     * @return the latency of each call in nanoseconds
+     */
+    private static long[] measure(Echo echo, int threads, int calls) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                long[] latencies = new long[calls];
+                for (int i = 0; i < calls; i++) {
+                    Message message = new Message(UUID.randomUUID(), Type.PUT, "key" + i, "value" + i, UUID.randomUUID());
+                    long start = System.nanoTime();
+                    echo.echo(message);
+                    latencies[i] = System.nanoTime() - start;
+                }
+                return latencies;
+            }));
+        }
+        long[] all = new long[threads * calls];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(futures.get(t).get(), 0, all, t * calls, calls);
+        }
+        executor.shutdown();
+        return all;
+    }
+
+    /**
+     * Api of the benchmark
+     */
+    public interface Echo extends Remote {
+
+        /**
+         * Send back the message
+         *
+         * @param message the message
+         * @return the message
+         * @throws RemoteException remote exception
+         */
+        Message echo(Message message) throws RemoteException;
+    }
+
+    private static class EchoImp implements Echo {
+
+        @Override
+        public Message echo(Message message) {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.neu.bench;
+
+import org.neu.db.Durability;
+import org.neu.db.WriteAheadLog;
+import org.neu.protocol.Message;
+import org.neu.protocol.Type;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark of the write-ahead log, report the commits per second of each durability mode
+ */
+public class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Path dir = Files.createTempDirectory(args.length > 2 ? Paths.get(args[2]) : Paths.get(System.getProperty("java.io.tmpdir")), "wal");
+        System.out.println("Threads: " + threads + ", commits per thread: " + commits + ", directory: " + dir);
+        for (Durability durability : Durability.values()) {
+            Path file = dir.resolve(durability.name() + ".wal");
+            double rate = run(file, durability, threads, commits);
+            System.out.printf("%-10s %12.0f commits/s%n", durability, rate);
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * Run concurrent commits, each is a prepare and a commit record synced like a server does
+     *
+     * @param file       the log file
+     * @param durability the durability mode
+     * @param threads    number of concurrent committers
+     * @param commits    number of commits of each committer
+     * @return commits per second
+     */
+    private static double run(Path file, Durability durability, int threads, int commits) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (WriteAheadLog wal = new WriteAheadLog(file, durability, 10)) {
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < commits; i++) {
+                        Message message = new Message(UUID.randomUUID(), Type.PUT, "key" + i, "value" + i, UUID.randomUUID());
+                        wal.append(WriteAheadLog.PREPARE, message);
+                        wal.sync();
+                        wal.append(WriteAheadLog.COMMIT, message);
+                        wal.sync();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            return (double) threads * commits / (elapsed / 1e9);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed in running the benchmark on " + file, e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
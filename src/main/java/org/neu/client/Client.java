@@ -2,8 +2,13 @@ package org.neu.client;
 
 import lombok.extern.slf4j.Slf4j;
 import org.neu.api.Service;
+import org.neu.partition.HashRing;
 import org.neu.protocol.Message;
+import org.neu.protocol.Operation;
+import org.neu.protocol.Result;
+import org.neu.protocol.ScanPage;
 import org.neu.protocol.Type;
+import org.neu.transport.Transport;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -11,7 +16,6 @@ import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.AlreadyBoundException;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -19,8 +23,16 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidParameterException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * RMI client.
@@ -32,22 +44,39 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
     private static final UUID clientId = UUID.randomUUID();
 
     // server collection
-    private static final Map<Integer, Map.Entry<String, Service>> serverInfo = new HashMap<>();
-
-    // response collector to store the response from the server
-    private static final Map<Message, String> resCollector = new HashMap<>();
-
-    // request collector to check if no response for some request, also carry a timestamp of the request sent
-    private static final Map<Message, Long> requestCollector = new HashMap<>();
+    private static final Map<Integer, Map.Entry<String, Service>> serverInfo = new ConcurrentHashMap<>();
 
     // thread pool for asynchronous purposes
     private static final Executor executor = Executors.newFixedThreadPool(3);
 
+    // runs the writes waiting for their outcomes
+    private static final ExecutorService writer = Executors.newCachedThreadPool();
+
     // the client port
     private static int clientPort;
 
+    // cache of the values read, null if disabled
+    private static NearCache cache;
+
+    // ranks the servers by their latencies
+    private static ReplicaSelector selector;
+
+    // sends the reads not bound to a server to the fastest ones
+    private static HedgedReader hedgedReader;
+
+    // the servers owning each key, null until it is fetched
+    private static volatile HashRing ring;
+
+    // renews the subscription to the invalidations of the cache and the ring of the servers
+    private static final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+
+    // max number of times a write losing a conflict is sent again
+    private static final int writeRetries = Integer.getInteger("client.writeRetries", 3);
+
+    // the first backoff in milliseconds before a write losing a conflict is sent again, doubled with each attempt
+    private static final long retryBackoff = Long.getLong("client.retryBackoff", 20);
+
     protected Client() throws RemoteException {
-        monitor();
     }
 
     public static void main(String[] args) {
@@ -59,51 +88,52 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
                 // register the client
                 Registry registry = LocateRegistry.createRegistry(clientPort);
                 registry.bind("Client", new Client());
-                // get the remote interface
+                // get the remote interface by the transport the servers use, the responses still come by RMI
+                Transport transport = Transport.fromSystemProperties();
                 for (int i = 0; i < 5; i++) {
-                    Service service = (Service) Naming.lookup("rmi://" + args[i * 2] + ":" + args[i * 2 + 1] + "/Service");
+                    Service service = transport.lookup(args[i * 2], Integer.parseInt(args[i * 2 + 1]), "Service", Service.class);
                     String serverId = service.getId();
                     Map.Entry<String, Service> entry = Map.entry(serverId, service);
                     serverInfo.put(i, entry);
                     log.info("Connect to server: " + i + " serverId: " + serverId);
                 }
+                // the reads go to the fastest servers, a duplicate is sent to the next one after the hedge delay if enabled
+                selector = new ReplicaSelector(Double.parseDouble(System.getProperty("client.ewmaAlpha", "0.2")),
+                        Double.parseDouble(System.getProperty("client.explore", "0.05")),
+                        Long.getLong("client.failureBackoff", 2000),
+                        Double.parseDouble(System.getProperty("client.hedgePercentile", "95")));
+                hedgedReader = new HedgedReader(selector, serverInfo, Boolean.getBoolean("client.hedge"),
+                        Long.getLong("client.readTimeout", 10000));
+                // cache the values read if enabled, kept fresh by the invalidations of the coordinator
+                int cacheSize = Integer.getInteger("client.cacheSize", 0);
+                if (cacheSize > 0) {
+                    cache = new NearCache(cacheSize);
+                    long lease = Long.getLong("client.cacheLease", 5000);
+                    renewer.scheduleWithFixedDelay(Client::subscribe, 0, lease, TimeUnit.MILLISECONDS);
+                }
+                // the reads of a key go to its owners, the ring changes as servers join
+                long ringRefresh = Long.getLong("client.ringRefresh", 10000);
+                renewer.scheduleWithFixedDelay(Client::refreshRing, 0, ringRefresh, TimeUnit.MILLISECONDS);
 
-                // start prepopulate thread
+                // pre-populate in one transaction round, then start the user interface
                 executor.execute(() -> {
                     // get random key value pairs
                     Map<String, String> prepopulate = prepopulate();
-                    ArrayList<Map.Entry<String, String>> entries = new ArrayList<>(prepopulate.entrySet());
-                    Random random = new Random();
+                    // choose the fastest server, none is measured yet so it is any of them
+                    int num = selector.pick(serverInfo.keySet());
                     log.info("Pre-populating ... ");
-                    for (int i = 0; i < 5; i++) {
-                        // randomly choose a server to request
-                        int num = random.nextInt(4);
-                        Service service = serverInfo.get(num).getValue();
-                        try {
-                            // send put request
-                            Message message = new Message(UUID.randomUUID(), Type.PUT, entries.get(i).getKey(), entries.get(i).getValue(), clientId);
-                            service.doPut(message, InetAddress.getLocalHost().getHostName(), clientPort);
-                            requestCollector.put(message, System.currentTimeMillis());
-                        } catch (RemoteException | UnknownHostException e) {
-                            log.info("Server " + i + " is not responsible in pre-population");
-                        }
-                        try {
-                            Thread.sleep(3500);
-                        } catch (InterruptedException e) {
-                            log.info("Pre-populating interrupt");
+                    try {
+                        for (Result result : putAll(num, prepopulate).join()) {
+                            log.info("Receive response from server " + num + ", message: " + result.getResponse());
                         }
+                        log.info("Pre-populate completed");
+                    } catch (CompletionException e) {
+                        log.info("Server " + num + " is not responsible in pre-population");
                     }
-                    log.info("Pre-populate completed");
-                });
-
-                // the thread to take care of user interface
-                executor.execute(() -> {
                     try {
-                        // wait for the pre-populate done
-                        Thread.sleep(3600*5);
                         // start ui
                         userInterface();
-                    } catch (IOException | InterruptedException e) {
+                    } catch (IOException e) {
                         log.info("Failed in starting user interface");
                     }
                 });
@@ -156,7 +186,7 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
         // user interaction
         while (true) {
             log.info("We have " + serverInfo.keySet().size() + " servers are ready for you: " + Arrays.toString(serverInfo.keySet().toArray()));
-            log.info("Please specify one server to use");
+            log.info("Please specify one server to use, or any for the fastest one");
             log.info("Please choose a server or quit to exit");
             String serverId = reader.readLine();
             if (serverId.equalsIgnoreCase("quit")) {
@@ -164,12 +194,12 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
             }
             int id = -1;
             try {
-                id = Integer.parseInt(serverId);
+                boolean any = "any".equalsIgnoreCase(serverId);
+                id = any ? selector.pick(serverInfo.keySet()) : Integer.parseInt(serverId);
                 if (id < 0 || id > 4) {
                     throw new InvalidParameterException();
                 }
-                Map.Entry<String, Service> entry = serverInfo.get(id);
-                log.info("Please input: get, put, delete to use service");
+                log.info("Please input: get, put, delete or stats to use service");
                 String input = reader.readLine();
                 // remove potential space
                 input = input.replaceAll("\\s", "");
@@ -177,24 +207,25 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
                 if ("get".equalsIgnoreCase(input)) {
                     log.info("Please input a key: ");
                     String key = reader.readLine();
-                    log.info("Sent Get request: key = " + key + " to server " + id);
-                    log.info("Receive response from server " + id + ", message: " + entry.getValue().doGet(clientId, key));
+                    log.info("Sent Get request: key = " + key + " to server " + (any ? "any" : id));
+                    String value = any ? get(key) : get(id, key);
+                    log.info("Receive response from server " + (any ? "any" : id) + ", message: " + (value != null ? value : "key: " + key + " is not found"));
                 } else if ("put".equalsIgnoreCase(input)) {
                     log.info("Please input a key: ");
                     String key = reader.readLine();
                     log.info("Please input a value: ");
                     String value = reader.readLine();
                     log.info("Sent Put request: key = " + key + " value = " + value + " to server " + id);
-                    Message message = new Message(UUID.randomUUID(), Type.PUT, key, value, clientId);
-                    entry.getValue().doPut(message, InetAddress.getLocalHost().getHostName(), clientPort);
-                    requestCollector.put(message, System.currentTimeMillis());
+                    report(id, put(id, key, value));
                 } else if ("delete".equalsIgnoreCase(input)) {
                     log.info("Please input a key: ");
                     String key = reader.readLine();
                     log.info("Sent Delete request: key = " + key + " to server " + id);
-                    Message message = new Message(UUID.randomUUID(), Type.DELETE, key, null, clientId);
-                    entry.getValue().doDelete(message, InetAddress.getLocalHost().getHostName(), clientPort);
-                    requestCollector.put(message, System.currentTimeMillis());
+                    report(id, delete(id, key));
+                } else if ("stats".equalsIgnoreCase(input)) {
+                    log.info("Cache: " + (cache != null ? cache : "disabled"));
+                    log.info("Reads: " + hedgedReader);
+                    log.info("Protocol: " + serverInfo.get(id).getValue().getCounters());
                 } else {
                     throw new InvalidParameterException();
                 }
@@ -212,51 +243,342 @@ public class Client extends UnicastRemoteObject implements org.neu.api.Client {
         System.exit(0);
     }
 
-    @Override
-    public void setResponse(String serverId, String response, Message message) throws RemoteException {
-        // server gives response for the request
-        // store it in the response collector
+    /**
+     * Put a key value pair through a server
+     *
+     * @param server index of the server
+     * @param key    the key
+     * @param value  the value
+     * @return the future completed with the outcome once the transaction is decided
+     */
+    public static CompletableFuture<Result> put(int server, String key, String value) {
+        return write(server, new Message(UUID.randomUUID(), Type.PUT, key, value, clientId));
+    }
+
+    /**
+     * Delete a key through a server
+     *
+     * @param server index of the server
+     * @param key    the key
+     * @return the future completed with the outcome once the transaction is decided
+     */
+    public static CompletableFuture<Result> delete(int server, String key) {
+        return write(server, new Message(UUID.randomUUID(), Type.DELETE, key, null, clientId));
+    }
+
+    /**
+     * Get the value of a key, from the cache if it is cached, otherwise from a server
+     *
+     * @param server index of the server
+     * @param key    the key
+     * @return the value, null if the key is not found
+     * @throws RemoteException remote exception
+     */
+    public static String get(int server, String key) throws RemoteException {
+        if (cache == null) {
+            return getAll(server, Collections.singletonList(key)).get(key);
+        }
+        String value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        long epoch = cache.epoch();
+        value = getAll(server, Collections.singletonList(key)).get(key);
+        if (value != null) {
+            cache.put(key, value, epoch);
+        }
+        return value;
+    }
+
+    /**
+     * Get the value of a key, from the cache if it is cached, otherwise from the fastest server owning it
+     *
+     * @param key the key
+     * @return the value, null if the key is not found
+     * @throws RemoteException if every server failed
+     */
+    public static String get(String key) throws RemoteException {
+        if (cache == null) {
+            return read(Collections.singletonList(key)).get(key);
+        }
+        String value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        long epoch = cache.epoch();
+        value = read(Collections.singletonList(key)).get(key);
+        if (value != null) {
+            cache.put(key, value, epoch);
+        }
+        return value;
+    }
+
+    /**
+     * Get the values of several keys from the fastest servers owning them, one call for the keys of the same owners
+     *
+     * @param keys the keys
+     * @return the value of each key present, the absent keys are left out
+     * @throws RemoteException if every owner of some key failed
+     */
+    public static Map<String, String> getAll(Collection<String> keys) throws RemoteException {
+        return read(keys);
+    }
+
+    /**
+     * Read the keys from their owners, every server owns every key until the ring is known
+     *
+     * @param keys the keys
+     * @return the value of each key present, the absent keys are left out
+     * @throws RemoteException if every owner of some key failed
+     */
+    private static Map<String, String> read(Collection<String> keys) throws RemoteException {
+        HashRing current = ring;
+        if (current == null || current.isFull()) {
+            return hedgedReader.read(keys);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<List<String>, List<String>> group : current.group(keys).entrySet()) {
+            List<Integer> owners = new ArrayList<>();
+            serverInfo.forEach((index, entry) -> {
+                if (group.getKey().contains(entry.getKey())) {
+                    owners.add(index);
+                }
+            });
+            // the ring may be older than the servers known, then any server is tried
+            values.putAll(hedgedReader.read(group.getValue(), owners.isEmpty() ? serverInfo.keySet() : owners));
+        }
+        return values;
+    }
+
+    /**
+     * Fetch the ring of the servers through any server
+     */
+    private static void refreshRing() {
         for (Map.Entry<Integer, Map.Entry<String, Service>> entry : serverInfo.entrySet()) {
-            if (entry.getValue().getKey().equals(serverId)) {
-                resCollector.put(message, "Receive response from server " + entry.getKey() + ", message: " + response);
-                break;
+            try {
+                ring = entry.getValue().getValue().getRing();
+                return;
+            } catch (RemoteException e) {
+                log.error("Cannot get the ring of the servers through server " + entry.getKey());
             }
         }
     }
 
     /**
-     * Listen to the response collector, if a message presented then log it
-     * if a message doesn't get response in 5 seconds it will be marked timeout
+     * Subscribe to the invalidations through any server, the cache is dropped if the subscription was lost
      */
-    public void monitor() {
-        executor.execute(() -> {
-            while (true) {
-                Iterator<Map.Entry<Message, Long>> iterator = requestCollector.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<Message, Long> next = iterator.next();
-                    // if the request doesn't get a response in 5 seconds will be logged timeout
-                    if (System.currentTimeMillis() - next.getValue() > 5000) {
-                        log.error("Cannot receive response for the request: " + next.getKey());
-                        iterator.remove();
-                    } else {
-                        if (!resCollector.isEmpty()) {
-                            String result = resCollector.get(next.getKey());
-                            if (result != null) {
-                                // log the response from server
-                                log.info(result);
-                                resCollector.remove(next.getKey());
-                                iterator.remove();
-                            }
-                        }
-                    }
+    private static void subscribe() {
+        String hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            log.error("Cannot resolve the hostname of the client, the cache is not subscribed");
+            return;
+        }
+        for (Map.Entry<Integer, Map.Entry<String, Service>> entry : serverInfo.entrySet()) {
+            try {
+                if (entry.getValue().getValue().subscribe(hostname, clientPort)) {
+                    // the invalidations before the subscription are unknown
+                    cache.clear();
+                    log.info("Subscribed to the invalidations through server " + entry.getKey());
                 }
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    log.info("Monitor interrupted");
+                return;
+            } catch (RemoteException e) {
+                log.error("Cannot subscribe to the invalidations through server " + entry.getKey());
+            }
+        }
+        // no server is reachable, nothing can be known about the changes
+        cache.clear();
+    }
+
+    /**
+     * Get the values of several keys from a server in one call
+     *
+     * @param server index of the server
+     * @param keys   the keys
+     * @return the value of each key present, the absent keys are left out
+     * @throws RemoteException remote exception
+     */
+    public static Map<String, String> getAll(int server, Collection<String> keys) throws RemoteException {
+        Map.Entry<String, Service> entry = serverInfo.get(server);
+        if (entry == null) {
+            throw new InvalidParameterException("Unknown server " + server);
+        }
+        // the collection is sent as it is, a view of a map may not be serializable
+        return entry.getValue().doGetAll(new ArrayList<>(keys));
+    }
+
+    /**
+     * Scan the keys starting with a prefix from a server, the entities are fetched page by page
+     * so only one page is held at a time
+     *
+     * @param server   index of the server
+     * @param prefix   the prefix of the keys
+     * @param pageSize number of entities of a page
+     * @param consumer receives each entity in the order of the keys
+     * @throws RemoteException remote exception
+     */
+    public static void scanPrefix(int server, String prefix, int pageSize, BiConsumer<String, String> consumer) throws RemoteException {
+        Map.Entry<String, Service> entry = serverInfo.get(server);
+        if (entry == null) {
+            throw new InvalidParameterException("Unknown server " + server);
+        }
+        String token = null;
+        do {
+            ScanPage page = entry.getValue().scanPrefix(prefix, token, pageSize);
+            page.getEntities().forEach(consumer);
+            token = page.getNext();
+        } while (token != null);
+    }
+
+    /**
+     * Put several key value pairs through a server in one transaction round
+     *
+     * @param server  index of the server
+     * @param entries the key value pairs
+     * @return the future completed with the outcome of each pair in the iteration order of the entries
+     */
+    public static CompletableFuture<List<Result>> putAll(int server, Map<String, String> entries) {
+        List<Message> messages = new ArrayList<>(entries.size());
+        entries.forEach((key, value) -> messages.add(new Message(UUID.randomUUID(), Type.PUT, key, value, clientId)));
+        Map.Entry<String, Service> entry = serverInfo.get(server);
+        if (entry == null) {
+            CompletableFuture<List<Result>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new InvalidParameterException("Unknown server " + server));
+            return failed;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return entry.getValue().writeAll(messages);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, writer);
+    }
+
+    /**
+     * Put and delete several keys through a server in one transaction, all of the operations are applied or none
+     *
+     * @param server     index of the server
+     * @param operations the operations in order
+     * @return the future completed with the outcome once the transaction is decided
+     */
+    public static CompletableFuture<Result> transact(int server, List<Operation> operations) {
+        return write(server, Message.transaction(UUID.randomUUID(), operations, clientId));
+    }
+
+    /**
+     * Send a write request and wait for its outcome in the background
+     *
+     * @param server  index of the server
+     * @param message the message of the request
+     * @return the future completed with the outcome, or exceptionally if the server is lost
+     */
+    private static CompletableFuture<Result> write(int server, Message message) {
+        return write(server, message, 0);
+    }
+
+    /**
+     * Send a write request and wait for its outcome in the background. A write rejected although the data
+     * would accept it lost a conflict with a concurrent write, it is sent again as a new message after a backoff
+     * doubling with each attempt.
+     *
+     * @param server  index of the server
+     * @param message the message of the request
+     * @param attempt number of times the write was sent before
+     * @return the future completed with the outcome, or exceptionally if the server is lost
+     */
+    private static CompletableFuture<Result> write(int server, Message message, int attempt) {
+        Map.Entry<String, Service> entry = serverInfo.get(server);
+        if (entry == null) {
+            CompletableFuture<Result> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new InvalidParameterException("Unknown server " + server));
+            return failed;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Result result = entry.getValue().write(message);
+                if (result.isCommitted() || attempt >= writeRetries || !wouldAccept(message)) {
+                    return CompletableFuture.completedFuture(result);
                 }
+                // a random backoff in the upper half of the window, so the conflicting writes do not meet again
+                long window = retryBackoff << attempt;
+                long delay = window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+                log.info("Write of the message: " + message.getMessageId() + " lost a conflict, retry in " + delay + " ms");
+                Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, writer);
+                return CompletableFuture.supplyAsync(() -> retryOf(message), later)
+                        .thenCompose((retry) -> write(server, retry, attempt + 1));
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, writer).thenCompose((outcome) -> outcome);
+    }
+
+    /**
+     * Determine if the current data would accept a rejected write, i.e. it was rejected by a conflict
+     *
+     * @param message the message of the write
+     * @return true if every put is on an absent key and every delete is on a present key
+     * @throws RemoteException if the keys cannot be read
+     */
+    private static boolean wouldAccept(Message message) throws RemoteException {
+        Map<String, String> values = read(message.getChanges().keySet());
+        // an earlier operation of the same transaction counts as done, as in the vote of a server
+        Map<String, Boolean> present = new HashMap<>();
+        for (Operation operation : message.getOperations()) {
+            boolean put = operation.getType().equals(Type.PUT);
+            if (put == present.computeIfAbsent(operation.getKey(), values::containsKey)) {
+                return false;
+            }
+            present.put(operation.getKey(), put);
+        }
+        return true;
+    }
+
+    /**
+     * Copy a message with a new message id to send it again. The new id keeps the high bits of the old one,
+     * so the write keeps its place in the order the servers resolve the conflicts by, instead of drawing a new one
+     *
+     * @param message the message
+     * @return the copy
+     */
+    private static Message retryOf(Message message) {
+        UUID id = new UUID(message.getMessageId().getMostSignificantBits(), ThreadLocalRandom.current().nextLong());
+        return new Message(id, message.getType(), message.getKey(), message.getValue(), message.getClientId(), 0,
+                message.getType().equals(Type.TRANSACTION) ? message.getOperations() : null);
+    }
+
+    /**
+     * Log the outcome of a write once it is known
+     *
+     * @param server  index of the server
+     * @param outcome the outcome
+     */
+    private static void report(int server, CompletableFuture<Result> outcome) {
+        outcome.whenComplete((result, error) -> {
+            if (error != null) {
+                log.error("Cannot receive response from server " + server + ": " + error.getCause());
+            } else {
+                log.info("Receive response from server " + server + ", message: " + result.getResponse());
             }
         });
     }
-}
 
+    @Override
+    public void invalidate(List<String> keys, long lsn, long time) throws RemoteException {
+        if (cache != null) {
+            cache.invalidate(keys, time);
+        }
+    }
+
+    @Override
+    public void setResponse(String serverId, String response, Message message) throws RemoteException {
+        // server gives response for a request sent by doPut or doDelete
+        for (Map.Entry<Integer, Map.Entry<String, Service>> entry : serverInfo.entrySet()) {
+            if (entry.getValue().getKey().equals(serverId)) {
+                log.info("Receive response from server " + entry.getKey() + ", message: " + response);
+                break;
+            }
+        }
+    }
+}
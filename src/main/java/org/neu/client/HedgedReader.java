@@ -0,0 +1,219 @@
+package org.neu.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.api.Service;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Send the reads to the fastest replica. If hedging is enabled and no answer comes within the percentile delay,
+ * the same read is sent to the next replica as well and the first answer is kept. A failed call moves on
+ * to the next replica right away, whatever it failed with. The latency of every answer is recorded, the late ones too.
+ */
+@Slf4j
+public class HedgedReader {
+
+    // ranks the replicas
+    private final ReplicaSelector selector;
+
+    // the replicas by index
+    private final Map<Integer, Map.Entry<String, Service>> replicas;
+
+    // send a duplicate read after the delay
+    private final boolean hedging;
+
+    // time in milliseconds a read waits for an answer of any replica
+    private final long readTimeout;
+
+    // runs the calls
+    private final ExecutorService callers;
+
+    // starts the hedged calls
+    private final ScheduledExecutorService timer;
+
+    // number of reads
+    private final LongAdder reads;
+
+    // number of duplicate reads sent after the delay
+    private final LongAdder hedges;
+
+    // number of reads answered by a replica other than the first, by a duplicate or after a failure
+    private final LongAdder hedgeWins;
+
+    public HedgedReader(ReplicaSelector selector, Map<Integer, Map.Entry<String, Service>> replicas, boolean hedging, long readTimeout) {
+        this.selector = selector;
+        this.replicas = replicas;
+        this.hedging = hedging;
+        this.readTimeout = readTimeout;
+        this.callers = Executors.newCachedThreadPool();
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.reads = new LongAdder();
+        this.hedges = new LongAdder();
+        this.hedgeWins = new LongAdder();
+    }
+
+    /**
+     * Read the values of the keys
+     *
+     * @param keys the keys
+     * @return the value of each key present, the absent keys are left out
+     * @throws RemoteException if every replica failed
+     */
+    public Map<String, String> read(Collection<String> keys) throws RemoteException {
+        return read(keys, replicas.keySet());
+    }
+
+    /**
+     * Read the values of the keys from some of the replicas
+     *
+     * @param keys       the keys
+     * @param candidates indexes of the replicas holding the keys
+     * @return the value of each key present, the absent keys are left out
+     * @throws RemoteException if every candidate failed, or none answered in the read timeout
+     */
+    public Map<String, String> read(Collection<String> keys, Collection<Integer> candidates) throws RemoteException {
+        List<Integer> order = selector.ranked(candidates);
+        if (order.isEmpty()) {
+            throw new RemoteException("No server is available");
+        }
+        reads.increment();
+        Attempts attempts = new Attempts(new ArrayList<>(keys), order);
+        attempts.next();
+        long delay = selector.getHedgeDelay();
+        if (hedging && delay >= 0 && order.size() > 1) {
+            timer.schedule(() -> {
+                if (!attempts.answer.isDone()) {
+                    hedges.increment();
+                    attempts.next();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+        try {
+            return attempts.answer.get(readTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RemoteException ? (RemoteException) e.getCause()
+                    : new RemoteException("Failed in reading the keys", e.getCause());
+        } catch (TimeoutException e) {
+            // no more hedges for this read, a late answer is only recorded
+            attempts.answer.completeExceptionally(e);
+            throw new RemoteException("No server answered the read of " + keys.size() + " keys in " + readTimeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted in reading the keys");
+        }
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "reads: " + getReads() + ", hedges: " + getHedges() + ", answered by a later replica: " + getHedgeWins()
+                + ", hedge delay: " + Math.max(0, selector.getHedgeDelay()) / 1000 + " us";
+    }
+
+    /**
+     * The calls of one read
+     */
+    private class Attempts {
+
+        // the keys
+        private final List<String> keys;
+
+        // the replicas in the order to try
+        private final List<Integer> order;
+
+        // completed by the first answer, or by the last failure if every replica failed
+        private final CompletableFuture<Map<String, String>> answer;
+
+        // number of calls started
+        private int started;
+
+        // number of calls running
+        private int running;
+
+        private Attempts(List<String> keys, List<Integer> order) {
+            this.keys = keys;
+            this.order = order;
+            this.answer = new CompletableFuture<>();
+        }
+
+        /**
+         * Start the call to the next replica, nothing is done if there is none
+         */
+        private void next() {
+            int attempt;
+            synchronized (this) {
+                if (started == order.size()) {
+                    return;
+                }
+                attempt = started++;
+                running++;
+            }
+            int replica = order.get(attempt);
+            try {
+                callers.execute(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        Map.Entry<String, Service> entry = replicas.get(replica);
+                        if (entry == null) {
+                            throw new RemoteException("Server " + replica + " is removed");
+                        }
+                        Map<String, String> values = entry.getValue().doGetAll(keys);
+                        selector.record(replica, System.nanoTime() - start);
+                        if (answer.complete(values) && attempt > 0) {
+                            hedgeWins.increment();
+                        }
+                    } catch (Throwable e) {
+                        // an unexpected failure of the call counts as a failed attempt as well, the read never hangs on it
+                        fail(replica, e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                fail(replica, e);
+            }
+        }
+
+        /**
+         * Count a failed attempt, move on to the next replica or fail the read if it was the last one
+         *
+         * @param replica index of the replica
+         * @param cause   the failure
+         */
+        private void fail(int replica, Throwable cause) {
+            selector.fail(replica);
+            log.error("Server " + replica + " failed in reading, try the next one: " + cause);
+            boolean last;
+            synchronized (this) {
+                running--;
+                last = running == 0 && started == order.size();
+            }
+            if (last) {
+                answer.completeExceptionally(cause);
+            } else if (!answer.isDone()) {
+                next();
+            }
+        }
+    }
+}
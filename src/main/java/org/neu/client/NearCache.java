@@ -0,0 +1,181 @@
+package org.neu.client;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side cache of the values read from the servers, bounded by the capacity and the least recently used
+ * entry is dropped first. The entries are dropped by the invalidations the coordinator pushes after each commit.
+ * A value read while an invalidation arrives is not cached, since it may be older than the invalidation.
+ */
+public class NearCache {
+
+    // the cached values in the order of use, guarded by itself
+    private final LinkedHashMap<String, String> entries;
+
+    // number of invalidations and clears, a read started before a change of it is not cached
+    private final AtomicLong epoch;
+
+    // number of reads served by the cache
+    private final LongAdder hits;
+
+    // number of reads sent to the servers
+    private final LongAdder misses;
+
+    // number of keys invalidated
+    private final LongAdder invalidations;
+
+    // number of entries dropped for the capacity
+    private final LongAdder evictions;
+
+    // total and max milliseconds from the acknowledgement of a commit to its invalidation
+    private final LongAdder lagTotal;
+    private final AtomicLong lagMax;
+
+    // number of invalidation callbacks received
+    private final LongAdder callbacks;
+
+    public NearCache(int capacity) {
+        this.evictions = new LongAdder();
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.epoch = new AtomicLong();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.invalidations = new LongAdder();
+        this.lagTotal = new LongAdder();
+        this.lagMax = new AtomicLong();
+        this.callbacks = new LongAdder();
+    }
+
+    /**
+     * Get a cached value
+     *
+     * @param key the key
+     * @return the value, null if it is not cached
+     */
+    public String get(String key) {
+        String value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    /**
+     * Get the epoch to be passed to {@link #put} before reading a value from a server
+     *
+     * @return the epoch
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Cache a value read from a server, unless some key is invalidated since the read started
+     *
+     * @param key   the key
+     * @param value the value
+     * @param epoch the epoch before the read
+     */
+    public void put(String key, String value, long epoch) {
+        synchronized (entries) {
+            // the invalidations change the epoch under the same lock, so none can slip in between
+            if (this.epoch.get() == epoch) {
+                entries.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Drop the changed keys
+     *
+     * @param keys the keys
+     * @param time the time in milliseconds the earliest of the changes was acknowledged
+     */
+    public void invalidate(Collection<String> keys, long time) {
+        synchronized (entries) {
+            epoch.incrementAndGet();
+            for (String key : keys) {
+                entries.remove(key);
+            }
+        }
+        invalidations.add(keys.size());
+        callbacks.increment();
+        long lag = Math.max(0, System.currentTimeMillis() - time);
+        lagTotal.add(lag);
+        lagMax.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * Drop every entry, the invalidations may have been lost
+     */
+    public void clear() {
+        synchronized (entries) {
+            epoch.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached entries
+     *
+     * @return the number of cached entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the average milliseconds from the acknowledgement of a commit to its invalidation,
+     * the clocks of the coordinator and the client are assumed in sync
+     *
+     * @return the average lag, 0 if nothing is invalidated
+     */
+    public double getAverageLag() {
+        long count = callbacks.sum();
+        return count == 0 ? 0 : (double) lagTotal.sum() / count;
+    }
+
+    public long getMaxLag() {
+        return lagMax.get();
+    }
+
+    @Override
+    public String toString() {
+        long hit = getHits();
+        long total = hit + getMisses();
+        return String.format("entries: %d, hits: %d, misses: %d, hit rate: %.1f%%, invalidations: %d, evictions: %d, lag avg: %.1f ms max: %d ms",
+                size(), hit, total - hit, total == 0 ? 0.0 : hit * 100.0 / total, getInvalidations(), getEvictions(), getAverageLag(), getMaxLag());
+    }
+}
@@ -0,0 +1,179 @@
+package org.neu.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rank the replicas by the exponentially weighted moving average of their latencies, the fastest healthy one first.
+ * A replica failing a call is unhealthy for the backoff and ranked after the healthy ones.
+ * A small share of the picks go to a random healthy replica, so a replica that became fast again is noticed.
+ * The recent latencies of all replicas give the percentile used as the delay of a hedged read.
+ */
+public class ReplicaSelector {
+
+    // number of recent latencies kept for the percentile
+    private static final int WINDOW = 1024;
+
+    // number of latencies recorded between two computations of the percentile
+    private static final int REFRESH = 64;
+
+    // number of latencies needed before the percentile is trusted
+    private static final int MIN_SAMPLES = 16;
+
+    // the statistics of each replica by index
+    private final Map<Integer, Stats> stats;
+
+    // weight of the latest latency in the average
+    private final double alpha;
+
+    // share of the picks going to a random healthy replica
+    private final double explore;
+
+    // time in milliseconds a failed replica is unhealthy
+    private final long backoff;
+
+    // the percentile of the latencies used as the hedge delay
+    private final double percentile;
+
+    // the recent latencies in nanoseconds as a ring, guarded by itself
+    private final long[] recent;
+
+    // number of latencies recorded
+    private long recorded;
+
+    // the latest computed percentile in nanoseconds, -1 if there are too few samples
+    private volatile long delay;
+
+    public ReplicaSelector(double alpha, double explore, long backoff, double percentile) {
+        this.stats = new ConcurrentHashMap<>();
+        this.alpha = alpha;
+        this.explore = explore;
+        this.backoff = backoff;
+        this.percentile = percentile;
+        this.recent = new long[WINDOW];
+        this.delay = -1;
+    }
+
+    /**
+     * Rank the replicas for a read
+     *
+     * @param replicas indexes of the available replicas
+     * @return the replicas in the order to try
+     */
+    public List<Integer> ranked(Collection<Integer> replicas) {
+        long now = System.currentTimeMillis();
+        // the statistics are copied first, they change while sorting
+        List<double[]> snapshot = new ArrayList<>(replicas.size());
+        int healthy = 0;
+        for (int replica : replicas) {
+            Stats replicaStats = stats(replica);
+            boolean down = replicaStats.isDown(now);
+            healthy += down ? 0 : 1;
+            snapshot.add(new double[]{replica, down ? 1 : 0, replicaStats.average});
+        }
+        // a replica never measured has no average and is tried first
+        snapshot.sort(Comparator.comparingDouble((double[] replica) -> replica[1]).thenComparingDouble((replica) -> replica[2]));
+        List<Integer> ranked = new ArrayList<>(snapshot.size());
+        snapshot.forEach((replica) -> ranked.add((int) replica[0]));
+        if (healthy > 1 && ThreadLocalRandom.current().nextDouble() < explore) {
+            Collections.swap(ranked, 0, ThreadLocalRandom.current().nextInt(healthy));
+        }
+        return ranked;
+    }
+
+    /**
+     * Pick one replica
+     *
+     * @param replicas indexes of the available replicas
+     * @return the replica, -1 if there is none
+     */
+    public int pick(Collection<Integer> replicas) {
+        List<Integer> ranked = ranked(replicas);
+        return ranked.isEmpty() ? -1 : ranked.get(0);
+    }
+
+    /**
+     * Record the latency of a successful call, the replica is healthy again
+     *
+     * @param replica index of the replica
+     * @param nanos   the latency in nanoseconds
+     */
+    public void record(int replica, long nanos) {
+        Stats replicaStats = stats(replica);
+        synchronized (replicaStats) {
+            replicaStats.average = replicaStats.samples == 0 ? nanos : alpha * nanos + (1 - alpha) * replicaStats.average;
+            replicaStats.samples++;
+            replicaStats.downUntil = 0;
+        }
+        synchronized (recent) {
+            recent[(int) (recorded % WINDOW)] = nanos;
+            recorded++;
+            if (recorded >= MIN_SAMPLES && (recorded < REFRESH || recorded % REFRESH == 0)) {
+                long[] sorted = Arrays.copyOf(recent, (int) Math.min(recorded, WINDOW));
+                Arrays.sort(sorted);
+                delay = sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+            }
+        }
+    }
+
+    /**
+     * Record a failed call, the replica is unhealthy for the backoff
+     *
+     * @param replica index of the replica
+     */
+    public void fail(int replica) {
+        Stats replicaStats = stats(replica);
+        synchronized (replicaStats) {
+            replicaStats.downUntil = System.currentTimeMillis() + backoff;
+        }
+    }
+
+    /**
+     * Get the delay before a hedged read is sent to the next replica
+     *
+     * @return the percentile of the recent latencies in nanoseconds, -1 if there are too few samples
+     */
+    public long getHedgeDelay() {
+        return delay;
+    }
+
+    /**
+     * Get the average latency of a replica
+     *
+     * @param replica index of the replica
+     * @return the average in nanoseconds, 0 if never measured
+     */
+    public double getAverage(int replica) {
+        return stats(replica).average;
+    }
+
+    private Stats stats(int replica) {
+        return stats.computeIfAbsent(replica, (k) -> new Stats());
+    }
+
+    /**
+     * The statistics of a replica
+     */
+    private static class Stats {
+
+        // the moving average of the latencies in nanoseconds
+        private volatile double average;
+
+        // number of latencies recorded
+        private long samples;
+
+        // the time the replica is healthy again after a failure
+        private volatile long downUntil;
+
+        private boolean isDown(long now) {
+            return downUntil > now;
+        }
+    }
+}
@@ -2,13 +2,16 @@ package org.neu.coordinator;
 
 import lombok.extern.slf4j.Slf4j;
 import org.neu.api.Transaction;
+import org.neu.db.Durability;
+import org.neu.db.WriteAheadLog;
+import org.neu.transport.Transport;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 
 /**
  * Coordinator initializer
@@ -21,12 +24,17 @@ public class Coordinator  {
      *
      * @throws RemoteException remote exception
      */
-    public Coordinator(String port) throws RemoteException, AlreadyBoundException, NumberFormatException, UnknownHostException {
+    public Coordinator(String port) throws IOException, AlreadyBoundException, NumberFormatException, UnknownHostException {
+        // the coordinator can be tuned with system properties
+        CoordinatorConfig config = CoordinatorConfig.fromSystemProperties();
+        // the decisions are aggregated in batches by the group flush, async mode would lose them in a crash
+        WriteAheadLog decisionLog = new WriteAheadLog(Paths.get(config.getDataDir(), "coordinator-" + port + ".log"), Durability.GROUP, 0);
         // create skeleton
-        Transaction stub = new CoordinatorImp();
-        // bind the stub to registry
-        Registry registry = LocateRegistry.createRegistry(Integer.parseInt(port));
-        registry.bind("Transaction", stub);
+        // the servers are reached by the transport chosen at startup
+        Transport transport = Transport.fromSystemProperties();
+        Transaction stub = new CoordinatorImp(config, decisionLog, transport);
+        // export the stub by the transport
+        transport.export(Integer.parseInt(port), "Transaction", Transaction.class, stub);
         log.info("Coordinator started at host: " + InetAddress.getLocalHost().getHostName() + " port: " + port);
     }
 
@@ -0,0 +1,120 @@
+package org.neu.coordinator;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Tuning of the coordinator, see the README for the system properties
+ */
+@Getter
+@Builder
+@ToString
+public class CoordinatorConfig {
+
+    // time to wait for all votes of a transaction in milliseconds
+    private final long voteTimeout;
+
+    // time to wait for all acks of a transaction in milliseconds
+    private final long ackTimeout;
+
+    // time to wait for a single remote call to a server in milliseconds
+    private final long callTimeout;
+
+    // number of threads running the decisions, the deadlines and the synchronizations
+    private final int workers;
+
+    // the max number of tasks waiting for a worker, a task beyond it runs on the thread submitting it
+    private final int workQueue;
+
+    // number of threads sending the remote calls to the servers
+    private final int callers;
+
+    // the max number of remote calls waiting for a caller thread, a call beyond it is refused
+    private final int callQueue;
+
+    // the max number of messages committed in one round, 1 disables group commit
+    private final int batchSize;
+
+    // the max time in milliseconds a message waits for others to form a batch
+    private final long batchWindow;
+
+    // send the decisions with the next prepare instead of separate commit and abort calls
+    private final boolean pipelined;
+
+    // the max time in milliseconds a decision waits for the next prepare before it is sent explicitly
+    private final long pipelineIdle;
+
+    // directory of the decision log
+    private final String dataDir;
+
+    // time in milliseconds between truncations of the decision log
+    private final long logTruncation;
+
+    // time in milliseconds after a restart the recovered decisions are sent to the registering servers
+    private final long recoveryWindow;
+
+    // the max number of latest commits kept to catch up the reconnected servers
+    private final int tailSize;
+
+    // the max number of commits sent in one catch up call
+    private final int catchUpPage;
+
+    // time in milliseconds to wait for the connection of a reconnected server being stable before syncing it
+    private final long syncDelay;
+
+    // the max number of characters of keys and values in one chunk of a full synchronization
+    private final int syncChunkSize;
+
+    // the max number of times a chunk of a full synchronization is sent again without reply
+    private final int syncRetries;
+
+    // time in milliseconds the changed keys wait for others before they are pushed to the subscribed clients
+    private final long invalidationWindow;
+
+    // number of servers owning each key, 0 for every server
+    private final int replicationFactor;
+
+    // number of points of each server on the hash ring
+    private final int virtualNodes;
+
+    // let the single participant of a message vote and apply it in one round
+    private final boolean onePhase;
+
+    // reject the messages the committed data shows the servers would reject, without asking them
+    private final boolean earlyReject;
+
+    /**
+     * Read the config from the system properties
+     *
+     * @return the config
+     */
+    public static CoordinatorConfig fromSystemProperties() {
+        return CoordinatorConfig.builder()
+                .voteTimeout(Long.getLong("coordinator.voteTimeout", 1000))
+                .ackTimeout(Long.getLong("coordinator.ackTimeout", 2200))
+                .callTimeout(Long.getLong("coordinator.callTimeout", 1000))
+                .workers(Integer.getInteger("coordinator.workers", 64))
+                .workQueue(Integer.getInteger("coordinator.workQueue", 10000))
+                .callers(Integer.getInteger("coordinator.callers", 64))
+                .callQueue(Integer.getInteger("coordinator.callQueue", 10000))
+                .batchSize(Integer.getInteger("coordinator.batchSize", 1))
+                .batchWindow(Long.getLong("coordinator.batchWindow", 5))
+                .pipelined(Boolean.getBoolean("coordinator.pipelined"))
+                .pipelineIdle(Long.getLong("coordinator.pipelineIdle", 20))
+                .dataDir(System.getProperty("coordinator.dataDir", "data"))
+                .logTruncation(Long.getLong("coordinator.logTruncation", 10000))
+                .recoveryWindow(Long.getLong("coordinator.recoveryWindow", 30000))
+                .tailSize(Integer.getInteger("coordinator.tailSize", 100000))
+                .catchUpPage(Integer.getInteger("coordinator.catchUpPage", 1000))
+                .syncDelay(Long.getLong("coordinator.syncDelay", 5000))
+                .syncChunkSize(Integer.getInteger("coordinator.syncChunkSize", 1 << 20))
+                .syncRetries(Integer.getInteger("coordinator.syncRetries", 3))
+                .invalidationWindow(Long.getLong("coordinator.invalidationWindow", 2))
+                .replicationFactor(Integer.getInteger("coordinator.replicationFactor", 0))
+                .virtualNodes(Integer.getInteger("coordinator.virtualNodes", 128))
+                .onePhase(Boolean.parseBoolean(System.getProperty("coordinator.onePhase", "true")))
+                .earlyReject(Boolean.parseBoolean(System.getProperty("coordinator.earlyReject", "true")))
+                .build();
+    }
+}
@@ -1,5 +1,6 @@
 package org.neu.coordinator;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.rmi.AlreadyBoundException;
 import java.rmi.RemoteException;
@@ -18,6 +19,9 @@ public class CoordinatorDriver {
             } catch (RemoteException | AlreadyBoundException | NumberFormatException | UnknownHostException e) {
                 System.out.println("Cannot register at the given port, please try again");
                 System.exit(1);
+            } catch (IOException e) {
+                System.out.println("Cannot open the decision log, please check the data directory");
+                System.exit(1);
             }
         } else {
             System.out.println("Please run the program: java -jar CoordinatorDriver.jar <port>");
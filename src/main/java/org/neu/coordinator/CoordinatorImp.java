@@ -4,296 +4,1140 @@ import lombok.extern.slf4j.Slf4j;
 import org.neu.api.Service;
 import org.neu.api.Transaction;
 import org.neu.db.DB;
+import org.neu.db.SnapshotCodec;
+import org.neu.db.WriteAheadLog;
+import org.neu.partition.HashRing;
 import org.neu.protocol.Message;
+import org.neu.protocol.Operation;
+import org.neu.protocol.Result;
 import org.neu.protocol.Type;
+import org.neu.protocol.SnapshotChunk;
+import org.neu.transport.Transport;
 
-import java.net.MalformedURLException;
-import java.rmi.Naming;
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Coordinator implementation
  */
 @Slf4j
-public class CoordinatorImp extends UnicastRemoteObject implements Transaction {
+public class CoordinatorImp implements Transaction {
 
     // store server connections
     private final Map<String, Service> serverInfo;
 
-    // cache the crash servers
-    private final Set<String> cache;
+    // cache the crash servers with the log sequence number of the first commit each missed
+    private final Map<String, Long> cache;
 
-    // collect response of vote result
-    // indicate if some server is absent and vote for aborting
-    private final Map<String, Boolean> responseCollector;
-
-    // ack message collector
-    // indicate if some server is absent
-    private final List<String> ackCollector;
+    // state of each in-flight transaction, keyed by the message id
+    private final Map<UUID, TransactionState> transactions;
 
     // cache each transaction data
     private final DB cacheData;
 
-    // thread pool for timeout handling and sync data with crash servers
-    private final Executor executor = Executors.newFixedThreadPool(10);
+    // thread pool for decisions, timeout handling and sync data with crash servers,
+    // a task beyond its queue runs on the submitting thread, which slows down the callers of the coordinator
+    private final Executor executor;
+
+    // thread pool to send the remote calls of a phase to all servers in parallel, a call beyond its queue
+    // is refused and counts as unanswered, a call still queued at the end of the call timeout is dropped
+    private final ExecutorService caller;
+
+    // timer for the vote and ack deadlines of each transaction
+    private final ScheduledThreadPoolExecutor timer;
+
+    // tuning of the coordinator
+    private final CoordinatorConfig config;
+
+    // collect the single messages into batches, null if group commit is disabled
+    private final GroupCommitter groupCommitter;
+
+    // decisions waiting to ride along the next prepare of each server in pipelined mode
+    private final Map<String, Queue<PendingDecision>> pipeline;
+
+    // durable log of the commit decisions
+    private final WriteAheadLog decisionLog;
+
+    // committed transactions in the decision log not yet acknowledged by every server
+    private final Map<UUID, Message> unacknowledged;
+
+    // committed transactions found unacknowledged in the decision log after a restart
+    private final Map<UUID, Message> recovered;
+
+    // number of acknowledged transactions since the last truncation of the decision log
+    private final AtomicInteger ended;
 
-    // response lock
-    private boolean isInitialRes = false;
+    // log sequence number of the latest commit
+    private final AtomicLong lsn;
 
-    // ack lock
-    private boolean isInitialAck = false;
+    // the latest commits by log sequence number, used to catch up the reconnected servers
+    private final ConcurrentSkipListMap<Long, Message> commitTail;
 
-    protected CoordinatorImp() throws RemoteException {
-        this.serverInfo = new HashMap<>();
-        this.cache = new HashSet<>();
-        this.responseCollector = new HashMap<>();
-        this.ackCollector = new ArrayList<>();
-        this.cacheData = new DB();
+    // number of commits in the tail
+    private final AtomicInteger tailSize;
+
+    // how the servers are reached
+    private final Transport transport;
+
+    // pushes the keys of the acknowledged commits to the subscribed clients
+    private final Invalidator invalidator;
+
+    // the servers owning each key, replaced when a server joins
+    private final AtomicReference<HashRing> ring;
+
+    // the server each request was sent to by message id, until its outcome is known
+    private final Map<UUID, String> origins;
+
+    // how often each path of the protocol was taken
+    private final ProtocolCounters counters;
+
+    // true while every commit of the data went through this coordinator, so the backup data is the whole data
+    private volatile boolean complete;
+
+    // number of one-phase commits in flight on each key, they are in the backup data only after they are applied
+    private final Map<String, Integer> onePhaseKeys;
+
+    protected CoordinatorImp(CoordinatorConfig config, WriteAheadLog decisionLog, Transport transport) throws IOException {
+        this.serverInfo = new ConcurrentHashMap<>();
+        this.cache = new ConcurrentHashMap<>();
+        this.transactions = new ConcurrentHashMap<>();
+        // only the latest data is sent to the servers, no version is kept for the views
+        this.cacheData = new DB(false);
+        this.config = config;
+        this.executor = new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getWorkQueue()), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.caller = new ThreadPoolExecutor(config.getCallers(), config.getCallers(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getCallQueue()));
+        this.timer = new ScheduledThreadPoolExecutor(1);
+        // drop the cancelled deadlines of completed transactions right away
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.groupCommitter = config.getBatchSize() > 1
+                ? new GroupCommitter(config.getBatchSize(), config.getBatchWindow(), this::runBatch, timer, executor)
+                : null;
+        this.pipeline = new ConcurrentHashMap<>();
+        this.decisionLog = decisionLog;
+        this.unacknowledged = new ConcurrentHashMap<>();
+        this.recovered = new ConcurrentHashMap<>();
+        this.ended = new AtomicInteger();
+        this.transport = transport;
+        this.invalidator = new Invalidator(config.getInvalidationWindow());
+        this.ring = new AtomicReference<>(new HashRing(Collections.emptyList(), config.getReplicationFactor(), config.getVirtualNodes()));
+        this.origins = new ConcurrentHashMap<>();
+        this.counters = new ProtocolCounters();
+        this.onePhaseKeys = new ConcurrentHashMap<>();
+        this.lsn = new AtomicLong();
+        this.commitTail = new ConcurrentSkipListMap<>();
+        this.tailSize = new AtomicInteger();
+        recover();
+        // the data committed before a restart is not in the backup, even when no decision is in doubt
+        this.complete = decisionLog.isCreated();
+        if (!complete) {
+            log.info("The coordinator restarted, the backup data misses the earlier commits, early rejection is off");
+        }
+        // drop the acknowledged transactions from the decision log
+        timer.scheduleWithFixedDelay(() -> executor.execute(this::truncateLog),
+                config.getLogTruncation(), config.getLogTruncation(), TimeUnit.MILLISECONDS);
+        if (config.isPipelined()) {
+            // send the decisions explicitly when no prepare comes to carry them
+            timer.scheduleWithFixedDelay(() -> executor.execute(this::flushPipeline),
+                    config.getPipelineIdle(), config.getPipelineIdle(), TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void requirePrepare(String serverId, Message message) throws RemoteException {
         // log
         log.info("Server with id: " + serverId + " tries to start a transaction for message: " + message);
-        // send the message to all the server
-        serverInfo.forEach((key, value) -> {
-            try {
-                value.prepare(message);
-            } catch (RemoteException e) {
-                // handle if some server crash
-                log.error("Server with id: " + key + " is unreachable in " + CacheType.REQ_PREPARE + ", try reconnection");
+        // the outcome goes back through this server if it does not own every key
+        origins.putIfAbsent(message.getMessageId(), serverId);
+        if (rejectEarly(message)) {
+            return;
+        }
+        if (groupCommitter != null) {
+            // the message will be transacted with others arriving in the same window
+            groupCommitter.add(message);
+            return;
+        }
+        // track the transaction before any vote can arrive, only the owners of its keys take part
+        HashRing current = ring.get();
+        TransactionState state = new TransactionState(message, participants(current, message), current, System.currentTimeMillis() + config.getVoteTimeout());
+        if (transactions.putIfAbsent(message.getMessageId(), state) != null) {
+            log.info("Ignore the duplicated transaction: " + message);
+            return;
+        }
+        // a single participant decides by itself, unless it may hold pipelined decisions of earlier messages
+        if (config.isOnePhase() && !config.isPipelined() && state.getParticipants().size() == 1) {
+            commitOnePhase(state.getParticipants().iterator().next(), Collections.singletonList(message), current);
+            transactions.remove(message.getMessageId());
+            return;
+        }
+        counters.twoPhase(1);
+        // abort the transaction if the votes are not complete before the deadline
+        state.setTimeout(timer.schedule(() -> executor.execute(() -> onVoteTimeout(state)), config.getVoteTimeout(), TimeUnit.MILLISECONDS), state.getDeadline());
+        // send the message to all the server in parallel
+        if (!config.isPipelined()) {
+            broadcast(state.getParticipants(), CacheType.REQ_PREPARE, (target, server) -> {
+                server.prepare(state.partOf(target));
+                return Boolean.TRUE;
+            });
+            return;
+        }
+        // carry the pending decisions of each server with its prepare
+        Map<String, List<PendingDecision>> carried = new ConcurrentHashMap<>();
+        Map<String, List<UUID>> acks = broadcast(state.getParticipants(), CacheType.REQ_PREPARE, (target, server) -> {
+            List<PendingDecision> decisions = drainPipeline(target, 0);
+            carried.put(target, decisions);
+            List<Message> commits = new ArrayList<>();
+            List<Message> aborts = new ArrayList<>();
+            decisions.forEach((decision) -> (decision.state.isCommitted() ? commits : aborts).add(decision.state.partOf(target)));
+            return server.prepare(state.partOf(target), commits, aborts);
+        });
+        carried.forEach((key, decisions) -> {
+            if (acks.containsKey(key)) {
+                acks.get(key).forEach((id) -> onAck(key, id));
+            } else {
+                // the decisions will be sent again with the next prepare or explicitly
+                pipeline.computeIfAbsent(key, (k) -> new ConcurrentLinkedQueue<>()).addAll(decisions);
             }
         });
     }
 
+    @Override
+    public void requirePrepareBatch(String serverId, List<Message> messages) throws RemoteException {
+        log.info("Server with id: " + serverId + " tries to start a transaction for a batch of " + messages.size() + " messages");
+        messages.forEach((message) -> origins.putIfAbsent(message.getMessageId(), serverId));
+        List<Message> remaining = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (!rejectEarly(message)) {
+                remaining.add(message);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            runBatch(remaining);
+        }
+    }
+
     @Override
     public void accept(String serverId, Message message) throws RemoteException {
         log.info("Server with id: " + serverId + " accepted");
+        TransactionState state = transactions.get(message.getMessageId());
+        if (state == null) {
+            log.info("Ignore the vote of an unknown transaction: " + message);
+            return;
+        }
         // record which server accepted
-        responseCollector.put(serverId, true);
+        state.vote(serverId, true);
         // determine if collect responses from all servers
-        resultAnalyzer(message);
+        resultAnalyzer(state);
     }
 
     @Override
     public void reject(String serverId, Message message) throws RemoteException {
         log.info("Server with id: " + serverId + " rejected");
+        TransactionState state = transactions.get(message.getMessageId());
+        if (state == null) {
+            log.info("Ignore the vote of an unknown transaction: " + message);
+            return;
+        }
         // record which server rejected
-        responseCollector.put(serverId, false);
+        state.vote(serverId, false);
         // determine if collect responses from all servers
-        resultAnalyzer(message);
+        resultAnalyzer(state);
     }
 
     @Override
     public void ackCommit(String serverId, Message message) throws RemoteException {
         log.info("Received ack commit from server with id: " + serverId);
-        // record the ack
-        ackCollector.add(serverId);
-        ackAnalyzer(CacheType.ACK_COMMIT, message);
+        onAck(serverId, message.getMessageId());
     }
 
     @Override
     public void ackAbort(String serverId, Message message) throws RemoteException {
         log.info("Received ack abort from server with id: " + serverId);
+        onAck(serverId, message.getMessageId());
+    }
+
+    /**
+     * Record the ack of a server
+     *
+     * @param serverId  id of the server
+     * @param messageId id of the acked message
+     */
+    private void onAck(String serverId, UUID messageId) {
+        TransactionState state = transactions.get(messageId);
+        if (state == null) {
+            log.info("Ignore the ack of an unknown transaction: " + messageId);
+            return;
+        }
         // record the ack
-        ackCollector.add(serverId);
-        ackAnalyzer(CacheType.ACK_ABORT, message);
+        state.ack(serverId);
+        ackAnalyzer(state);
     }
 
     @Override
-    public void register(String serverId, String ip, int port) throws RemoteException {
+    public void register(String serverId, String ip, int port, long lastLsn, int coordinators) throws RemoteException {
+        // the server has commits this coordinator has not seen, the backup data is no longer the whole data
+        if (complete && lastLsn > lsn.get()) {
+            complete = false;
+            log.info("Server with id: " + serverId + " has commits up to lsn: " + lastLsn + " this coordinator has not seen, early rejection is off");
+        }
+        // a transaction spanning slices changes the keys of another coordinator
+        if (complete && coordinators > 1) {
+            complete = false;
+            log.info("Server with id: " + serverId + " registers at " + coordinators + " coordinators, early rejection is off");
+        }
+        // the coordinator may have restarted and lost its latest log sequence number
+        lsn.accumulateAndGet(lastLsn, Math::max);
         // get the server api
         try {
-            Service server = (Service) Naming.lookup("rmi://" + ip + ":" + port + "/Service");
+            Service server = transport.lookup(ip, port, "Service", Service.class);
             // add the server to the server info
             serverInfo.put(serverId, server);
             log.info("Server with id: " + serverId + " is registered");
             log.info("The number of currently connected servers: " + serverInfo.size());
-            // if the server recovered from crash
-            executor.execute(() -> {
-                // if the server is presented on the crash server set and reconnected with the coordinator
-                // start data recovery
-                boolean isContain = cache.contains(serverId);
-                if (isContain) {
-                    log.info("Server with id: " + serverId + " reconnected");
-                    try {
-                        // wait for connection being stable
-                        Thread.sleep(5000);
-                        // sync data with the server
-                        server.sync(cacheData.getDB());
-                        log.info("Server with id: " + serverId + " is now synchronized");
-                        cache.remove(serverId);
-                    } catch (RemoteException e) {
-                        log.error("Server with id: " + serverId + " lost connection in SYNC");
-                    } catch (InterruptedException e) {
-                        log.info("Sync thread interrupted");
-                    }
-                }
-            });
-        } catch (NotBoundException | MalformedURLException e) {
+            // a new server takes over about 1/n of the keys, it catches up on the commits of the keys it owns
+            HashRing previous = ring.getAndUpdate((current) -> current.with(serverId));
+            if (!previous.getMembers().contains(serverId) && !previous.with(serverId).isFull()
+                    && lastLsn < lsn.get() && !commitTail.isEmpty()) {
+                log.info("Server with id: " + serverId + " joined the ring with lsn: " + lastLsn + ", catch up the keys it owns");
+                setCache(serverId, lastLsn + 1);
+            }
+            // resolve the transactions left in doubt by a restart of the coordinator
+            if (!recovered.isEmpty()) {
+                executor.execute(() -> resolve(serverId));
+            }
+            // if the server is presented on the crash server set and reconnected with the coordinator
+            // start data recovery once the connection is stable
+            if (cache.containsKey(serverId)) {
+                log.info("Server with id: " + serverId + " reconnected with lsn: " + lastLsn);
+                timer.schedule(() -> executor.execute(() -> catchUp(serverId, server, lastLsn)),
+                        config.getSyncDelay(), TimeUnit.MILLISECONDS);
+            }
+        } catch (NotBoundException e) {
             log.error("Unknown server with id: " + serverId + " ip: " + ip + " port: " + port + " requested for connection");
         }
     }
 
+    @Override
+    public Map<UUID, Boolean> resolve(String serverId, List<Message> messages) throws RemoteException {
+        Map<UUID, Boolean> outcomes = new HashMap<>();
+        Set<UUID> unknown = new HashSet<>();
+        for (Message message : messages) {
+            UUID messageId = message.getMessageId();
+            TransactionState state = transactions.get(messageId);
+            if (state != null) {
+                // the decision is sent to the server as usual once it is made
+                if (state.getPhase().get() != CacheType.REQ_PREPARE) {
+                    outcomes.put(messageId, state.isCommitted());
+                }
+            } else if (unacknowledged.containsKey(messageId)) {
+                outcomes.put(messageId, true);
+            } else {
+                unknown.add(messageId);
+            }
+        }
+        // a commit ended without the ack of the server is still in the tail
+        if (!unknown.isEmpty()) {
+            for (Message message : commitTail.values()) {
+                if (unknown.remove(message.getMessageId())) {
+                    outcomes.put(message.getMessageId(), true);
+                }
+            }
+        }
+        // no commit is known, the message is presumed aborted
+        unknown.forEach((messageId) -> outcomes.put(messageId, false));
+        log.info("Server with id: " + serverId + " resolved " + outcomes.size() + " of " + messages.size() + " messages in doubt");
+        return outcomes;
+    }
+
+    @Override
+    public boolean subscribe(String hostname, int port) throws RemoteException {
+        return invalidator.subscribe(hostname, port);
+    }
+
+    @Override
+    public HashRing getRing() throws RemoteException {
+        return ring.get();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() throws RemoteException {
+        return counters.toMap();
+    }
+
+    /**
+     * Reject a message without asking any server if the committed data shows the servers would reject it,
+     * i.e. a put of a present key or a delete of an absent key. A commit is in the backup data from its decision,
+     * and its keys stay locked on the servers until it is applied, so the servers never accept what the backup
+     * data rejects. The outcome is delivered to the server the request was sent to.
+     *
+     * @param message the message
+     * @return true if the message is rejected
+     */
+    private boolean rejectEarly(Message message) {
+        if (!config.isEarlyReject() || !complete) {
+            return false;
+        }
+        // an earlier operation of the same transaction counts as done, as in the vote of a server
+        Map<String, Boolean> present = new HashMap<>();
+        for (Operation operation : message.getOperations()) {
+            if (onePhaseKeys.containsKey(operation.getKey())) {
+                return false;
+            }
+            boolean put = operation.getType().equals(Type.PUT);
+            if (put == present.computeIfAbsent(operation.getKey(), cacheData::isContain)) {
+                counters.earlyRejection();
+                log.info("Message rejected by the coordinator, key: " + operation.getKey() + (put ? " is present" : " is absent"));
+                send(origins.remove(message.getMessageId()), message, false);
+                return true;
+            }
+            present.put(operation.getKey(), put);
+        }
+        return false;
+    }
+
     /**
-     * determine if there is a false in the response map
+     * Let the only participant of the messages vote and apply them in one round, its vote is the decision.
+     * No decision is logged and no ack is waited for, the participant holds the only record of a commit.
+     * The log sequence numbers are taken before, a rejected message leaves a gap.
      *
-     * @return true if there is at least one false in the map
+     * @param target   id of the participant
+     * @param messages the messages
+     * @param ring     the ring the participant was chosen by
      */
-    public boolean resultAnalyzer() {
-        // determine if there is a false in the response map
-        boolean value = responseCollector.containsValue(false);
-        // clear the collector for next time use
-        responseCollector.clear();
-        return value;
+    private void commitOnePhase(String target, List<Message> messages, HashRing ring) {
+        for (Message message : messages) {
+            message.setLsn(lsn.incrementAndGet());
+            message.getChanges().keySet().forEach((key) -> onePhaseKeys.merge(key, 1, Integer::sum));
+        }
+        Map<String, Map<UUID, Boolean>> outcomes = broadcast(Collections.singleton(target), CacheType.REQ_PREPARE,
+                (key, server) -> server.commitOnePhase(messages));
+        Map<UUID, Boolean> outcome = outcomes.get(target);
+        if (outcome == null) {
+            // the participant may or may not have applied them, it tells the client if it did
+            log.error("Server with id: " + target + " is unreachable in one-phase commit, the outcome of " + messages.size() + " messages is unknown");
+            complete = false;
+        }
+        for (Message message : messages) {
+            if (outcome != null) {
+                boolean committed = Boolean.TRUE.equals(outcome.get(message.getMessageId()));
+                counters.onePhase(committed);
+                if (committed) {
+                    // backup the data in coordinator side to sync the servers joining later
+                    backup(message);
+                    invalidator.publish(message.getChanges().keySet(), message.getLsn());
+                }
+                deliver(message, committed, ring, outcomes.keySet());
+            } else {
+                origins.remove(message.getMessageId());
+            }
+            message.getChanges().keySet().forEach((key) -> onePhaseKeys.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1));
+        }
+        log.info("One-phase commit of " + messages.size() + " messages on the server with id: " + target);
     }
 
     /**
-     * analyze if the message should commit or abort
+     * Get the registered servers owning any key of a message
      *
+     * @param ring    the ring of the servers
      * @param message the message
+     * @return ids of the servers
+     */
+    private Set<String> participants(HashRing ring, Message message) {
+        Set<String> participants = ring.owners(message.getChanges().keySet());
+        participants.retainAll(serverInfo.keySet());
+        return participants;
+    }
+
+    /**
+     * Split the messages by the registered servers owning their keys
+     *
+     * @param ring     the ring of the servers
+     * @param messages the messages
+     * @return the part of each message each server owns, in the order of the messages
      */
-    private void resultAnalyzer(Message message) {
-        // when received the first response of commit or abort from one server
-        // start timing
-        // if we cannot receive responses from all server, then timeout
-        // continue to the transaction
-        if (!isInitialRes) {
-            // set the response lock when first response arrive
-            isInitialRes = true;
-            executor.execute(() -> {
+    private Map<String, List<Message>> assign(HashRing ring, List<Message> messages) {
+        Map<String, List<Message>> parts = new HashMap<>();
+        for (Message message : messages) {
+            for (String owner : participants(ring, message)) {
+                parts.computeIfAbsent(owner, (k) -> new ArrayList<>()).add(ring.part(message, owner));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Send the outcome of a message to the server the request was sent to, unless the server received
+     * the decision of the whole message and has answered the client itself. The server misses the decision
+     * if it missed the vote, did not answer the decision call, or owns only a part of the message.
+     *
+     * @param message   the message
+     * @param committed true if the message is committed
+     * @param ring      the ring the participants were chosen by
+     * @param received  ids of the servers known to have received the decision
+     */
+    private void deliver(Message message, boolean committed, HashRing ring, Set<String> received) {
+        String origin = origins.remove(message.getMessageId());
+        if (origin != null && (!received.contains(origin) || ring.part(message, origin) != message)) {
+            send(origin, message, committed);
+        }
+    }
+
+    /**
+     * Send the outcome of a message to a server to answer the client
+     *
+     * @param origin    id of the server the request was sent to, nothing is sent if null
+     * @param message   the message
+     * @param committed true if the message is committed
+     */
+    private void send(String origin, Message message, boolean committed) {
+        Service server = origin == null ? null : serverInfo.get(origin);
+        if (server == null) {
+            return;
+        }
+        String current = !committed && message.getType().equals(Type.PUT) ? cacheData.get(message.getKey()) : null;
+        Result result = new Result(message.getMessageId(), origin, committed, Result.describe(message, committed, current));
+        try {
+            caller.execute(() -> {
                 try {
-                    // timeout for 1 second
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    log.info("Response collecting interrupted");
-                }
-                // if after 1 second, we don't receive responses from all server, those servers will be marked as unresponsive servers
-                if (responseCollector.size() == serverInfo.size()) {
-                    // if abort
-                    if (resultAnalyzer()) {
-                        // call abort
-                        log.info("Abort message sent, the message: " + message);
-                        serverInfo.forEach((key, value) -> {
-                            try {
-                                value.abort(message);
-                            } catch (RemoteException e) {
-                                // handle if some server crash
-                                log.error("Server with id: " + key + " is unreachable in " + CacheType.REJECT + ", try reconnection");
-                            }
-                        });
-                    } else {
-                        log.info("Received res from all servers with type: " + "COMMIT");
-                        // call commit
-                        log.info("Commit message sent, the message: " + message);
-                        serverInfo.forEach((key, value) -> {
-                            try {
-                                value.commit(message);
-                            } catch (RemoteException e) {
-                                // handle if some server crash
-                                log.error("Server with id: " + key + " is unreachable in " + CacheType.ACCEPT + ", try reconnection");
-                            }
-                        });
-                    }
-                } else {
-                    // cache the unresponsive server
-                    // check which servers are unresponsive
-                    Set<String> unresponsiveServers = new HashSet<>();
-                    for (Map.Entry<String, Service> entry : serverInfo.entrySet()) {
-                        if (!responseCollector.containsKey(entry.getKey())) {
-                            unresponsiveServers.add(entry.getKey());
-                        }
-                    }
-                    // continue to send message to the alive servers
-                    serverInfo.forEach((key, value) -> {
-                        if (!unresponsiveServers.contains(key)) {
-                            if (!resultAnalyzer()) {
-                                log.info("Commit message sent to the server with id: " + key + ", the message: " + message);
-                                try {
-                                    value.commit(message);
-                                } catch (RemoteException ex) {
-                                    log.error("Server with id: " + key + " is unreachable in " + CacheType.ACCEPT + ", try reconnection");
-                                }
-                            } else {
-                                log.info("Abort message sent to the server with id: " + key + ", the message: " + message);
-                                try {
-                                    value.abort(message);
-                                } catch (RemoteException ex) {
-                                    log.error("Server with id: " + key + " is unreachable in " + CacheType.REJECT + ", try reconnection");
-                                }
-                            }
-                        }
-                    });
-                    unresponsiveServers.clear();
+                    server.deliver(result, message);
+                } catch (RemoteException e) {
+                    log.error("Server with id: " + origin + " is unreachable in delivering the outcome of the message: " + message);
                 }
-                // clear the ack collector
-                responseCollector.clear();
-                isInitialRes = false;
             });
+        } catch (RejectedExecutionException e) {
+            log.error("Too many calls in flight, the outcome of the message is not delivered: " + message);
+        }
+    }
+
+    /**
+     * analyze if the transaction should commit or abort, the decision is made as soon as
+     * one server rejects or all servers accept
+     *
+     * @param state the state of the transaction
+     */
+    private void resultAnalyzer(TransactionState state) {
+        // decide on the pool, so the vote callback of the server returns right away
+        if (state.hasRejection()) {
+            executor.execute(() -> decide(state, false));
+        } else if (state.isVoteComplete()) {
+            log.info("Received res from all servers with type: " + "COMMIT");
+            executor.execute(() -> decide(state, true));
         }
     }
 
     /**
-     * Analyze if receive ack from all servers in 1.5 seconds
-     * record the result of the transaction
+     * Called when the vote deadline of a transaction expires, the transaction is aborted. A server that did not vote
+     * may still wait for the lock of a key held by another transaction, so committing without it could apply
+     * the two transactions in different orders on the servers
      *
-     * @param type    the type of message ack abort or ack commit
-     * @param message the message of the transaction
+     * @param state the state of the transaction
      */
-    public void ackAnalyzer(CacheType type, Message message) {
-        // when received the first response of commit or abort from one server
-        // start timing
-        // if we cannot receive ack from all server, then timeout
-        if (!isInitialAck) {
-            isInitialAck = true;
+    private void onVoteTimeout(TransactionState state) {
+        if (state.getPhase().get() != CacheType.REQ_PREPARE) {
+            return;
+        }
+        log.info("Vote timeout for the message: " + state.getMessage() + ", " + state.getVotes().size() + " of "
+                + state.getParticipants().size() + " servers voted, abort it");
+        decide(state, false);
+    }
+
+    /**
+     * Decide the transaction and send the decision to the servers
+     *
+     * @param state  the state of the transaction
+     * @param commit true to commit, false to abort
+     */
+    private void decide(TransactionState state, boolean commit) {
+        if (!state.decide(commit ? CacheType.ACCEPT : CacheType.REJECT)) {
+            return;
+        }
+        Message message = state.getMessage();
+        Set<String> recipients;
+        if (commit) {
+            // a commit needs the vote of every participant, so every participant receives it
+            recipients = new HashSet<>(state.getParticipants());
             // backup the data in coordinator side to sync with the crashed servers
-            if (message.getType().equals(Type.PUT)) {
-                cacheData.put(message.getKey(), message.getValue());
+            backup(message);
+            logDecisions(Collections.singletonList(message));
+        } else {
+            // aborting is harmless, so every participant receives it
+            recipients = new HashSet<>(state.getParticipants());
+        }
+        // the recipients must be known before any ack can arrive
+        state.setRecipients(recipients);
+        if (commit) {
+            state.setTimeout(timer.schedule(() -> executor.execute(() -> onAckTimeout(state)), config.getAckTimeout(), TimeUnit.MILLISECONDS),
+                    System.currentTimeMillis() + config.getAckTimeout());
+        } else {
+            state.cancelTimeout();
+        }
+        if (config.isPipelined()) {
+            // the decision rides along the next prepare of each server
+            long now = System.currentTimeMillis();
+            recipients.forEach((key) -> pipeline.computeIfAbsent(key, (k) -> new ConcurrentLinkedQueue<>())
+                    .add(new PendingDecision(state, now)));
+            log.info((commit ? "Commit" : "Abort") + " message queued, the message: " + message);
+            if (!commit) {
+                // the abort reaches the recipients with their next prepare or explicitly
+                presumeAbort(state, recipients);
+            }
+            return;
+        }
+        log.info((commit ? "Commit" : "Abort") + " message sent, the message: " + message);
+        Map<String, Boolean> sent = broadcast(recipients, commit ? CacheType.ACCEPT : CacheType.REJECT, (target, server) -> {
+            if (commit) {
+                server.commit(state.partOf(target));
             } else {
-                cacheData.delete(message.getKey());
+                server.abort(state.partOf(target));
             }
-            log.info("Backup data: " + message);
-            executor.execute(() -> {
-                try {
-                    Thread.sleep(2200);
-                } catch (InterruptedException e) {
-                    log.info("ACK analyzing interrupted");
+            return Boolean.TRUE;
+        });
+        if (!commit) {
+            presumeAbort(state, sent.keySet());
+            return;
+        }
+        // complete if all acks arrived while sending
+        ackAnalyzer(state);
+    }
+
+    /**
+     * Complete an aborted transaction once the abort is sent, no ack is waited for. A server missing the abort
+     * releases the locks of the message when they expire, and a message in doubt after a restart is presumed aborted.
+     *
+     * @param state    the state of the transaction
+     * @param received ids of the servers the abort was sent to
+     */
+    private void presumeAbort(TransactionState state, Set<String> received) {
+        if (state.complete()) {
+            transactions.remove(state.getMessage().getMessageId());
+            counters.presumedAbort(1);
+            deliver(state.getMessage(), false, state.getRing(), received);
+        }
+    }
+
+    /**
+     * Analyze if received ack from all servers the decision was sent to,
+     * the transaction is completed as soon as the last ack arrives
+     *
+     * @param state the state of the transaction
+     */
+    public void ackAnalyzer(TransactionState state) {
+        if (state.isAckComplete() && state.complete()) {
+            state.cancelTimeout();
+            transactions.remove(state.getMessage().getMessageId());
+            if (state.isCommitted()) {
+                endDecision(state.getMessage());
+            }
+            deliver(state.getMessage(), state.isCommitted(), state.getRing(), state.getRecipients());
+            log.info("Received ack from all servers with type: " + state.getPhase().get());
+        }
+    }
+
+    /**
+     * Called when the ack deadline of a transaction expires, record the unresponsive servers
+     *
+     * @param state the state of the transaction
+     */
+    private void onAckTimeout(TransactionState state) {
+        if (!state.complete()) {
+            return;
+        }
+        transactions.remove(state.getMessage().getMessageId());
+        CacheType type = state.getPhase().get();
+        // the servers missing the commit will be synchronized, so the decision is no longer needed
+        if (type == CacheType.ACK_COMMIT) {
+            endDecision(state.getMessage());
+        }
+        // only the servers that acked are known to have applied the decision
+        deliver(state.getMessage(), type == CacheType.ACK_COMMIT, state.getRing(), state.getAcks());
+        // cache the unresponsive server
+        state.getRecipients().forEach((key) -> {
+            if (!state.getAcks().contains(key)) {
+                log.error("Server with id: " + key + " is unreachable in " + type + ", try reconnection");
+                // a missed abort leaves no data behind, only a missed commit needs a sync
+                if (type == CacheType.ACK_COMMIT) {
+                    setCache(key, state.getMessage().getLsn());
                 }
-                if (ackCollector.size() == serverInfo.size()) {
-                    log.info("Received ack from all servers with type: " + type);
-                } else {
-                    // cache the unresponsive server
-                    // check which servers are unresponsive
-                    Set<String> unresponsiveServers = new HashSet<>();
-                    for (Map.Entry<String, Service> entry : serverInfo.entrySet()) {
-                        if (!ackCollector.contains(entry.getKey())) {
-                            unresponsiveServers.add(entry.getKey());
-                        }
+            }
+        });
+    }
+
+    /**
+     * Take the pending decisions of a server queued before the given time
+     *
+     * @param serverId id of the server
+     * @param before   only take the decisions queued before this time, 0 for all
+     * @return the decisions in the order they were made
+     */
+    private List<PendingDecision> drainPipeline(String serverId, long before) {
+        List<PendingDecision> decisions = new ArrayList<>();
+        Queue<PendingDecision> queue = pipeline.get(serverId);
+        if (queue == null) {
+            return decisions;
+        }
+        PendingDecision head;
+        while ((head = queue.peek()) != null && (before == 0 || head.time < before)) {
+            if (queue.remove(head)) {
+                decisions.add(head);
+            }
+        }
+        return decisions;
+    }
+
+    /**
+     * Send the decisions waiting longer than the idle time through the explicit commit and abort calls,
+     * so no decision waits forever when there is no traffic
+     */
+    private void flushPipeline() {
+        long before = System.currentTimeMillis() - config.getPipelineIdle();
+        pipeline.keySet().forEach((key) -> {
+            List<PendingDecision> decisions = drainPipeline(key, before);
+            if (decisions.isEmpty()) {
+                return;
+            }
+            broadcast(Collections.singleton(key), CacheType.ACCEPT, (target, server) -> {
+                for (PendingDecision decision : decisions) {
+                    if (decision.state.isCommitted()) {
+                        server.commit(decision.state.partOf(target));
+                    } else {
+                        server.abort(decision.state.partOf(target));
                     }
-                    // do cache
-                    unresponsiveServers.forEach((key) -> {
-                        log.error("Server with id: " + key + " is unreachable in " + type + ", try reconnection");
-                        setCache(key);
-                    });
                 }
-                // clear the ack collector
-                ackCollector.clear();
-                isInitialAck = false;
+                return Boolean.TRUE;
+            });
+        });
+    }
+
+    /**
+     * Run one transaction round for a batch of messages, each message is voted separately by the owners of its keys,
+     * then the accepted messages are committed together and the others are aborted together
+     *
+     * @param messages the batch
+     */
+    private void runBatch(List<Message> messages) {
+        HashRing current = ring.get();
+        Map<String, List<Message>> prepares = assign(current, messages);
+        // a single participant of every message decides by itself
+        if (config.isOnePhase() && prepares.size() == 1 && prepares.values().iterator().next().size() == messages.size()) {
+            commitOnePhase(prepares.keySet().iterator().next(), messages, current);
+            return;
+        }
+        counters.twoPhase(messages.size());
+        // votes of each server for each message it owns
+        Map<String, Map<UUID, Boolean>> votes = broadcast(prepares.keySet(), CacheType.REQ_PREPARE, (target, server) -> server.prepareBatch(prepares.get(target)));
+        List<Message> committed = new ArrayList<>();
+        List<Message> aborted = new ArrayList<>();
+        for (Message message : messages) {
+            // a message is committed only if every owner accepted it, an owner that did not vote aborts it
+            Set<String> owners = participants(current, message);
+            boolean accept = !owners.isEmpty();
+            for (String owner : owners) {
+                Map<UUID, Boolean> vote = votes.get(owner);
+                if (vote == null || !Boolean.TRUE.equals(vote.get(message.getMessageId()))) {
+                    accept = false;
+                    break;
+                }
+            }
+            (accept ? committed : aborted).add(message);
+        }
+        log.info("Batch of " + messages.size() + " messages decided, commit: " + committed.size() + " abort: " + aborted.size());
+        // the servers that received the commit and the abort calls
+        Set<String> commitReceived = Collections.emptySet();
+        Set<String> abortReceived = Collections.emptySet();
+        if (!committed.isEmpty()) {
+            // backup the data in coordinator side to sync with the crashed servers
+            committed.forEach(this::backup);
+            long firstLsn = committed.get(0).getLsn();
+            // every owner of a committed message voted for it
+            Map<String, List<Message>> commits = assign(current, committed);
+            logDecisions(committed);
+            Map<String, Object> acks = broadcast(commits.keySet(), CacheType.ACCEPT, (target, server) -> {
+                server.commitBatch(commits.get(target));
+                return Boolean.TRUE;
+            });
+            commits.keySet().forEach((key) -> {
+                if (!acks.containsKey(key)) {
+                    log.error("Server with id: " + key + " is unreachable in " + CacheType.ACK_COMMIT + ", try reconnection");
+                    setCache(key, firstLsn);
+                }
+            });
+            committed.forEach(this::endDecision);
+            commitReceived = acks.keySet();
+        }
+        if (!aborted.isEmpty()) {
+            Map<String, List<Message>> aborts = assign(current, aborted);
+            abortReceived = broadcast(aborts.keySet(), CacheType.REJECT, (target, server) -> {
+                server.abortBatch(aborts.get(target));
+                return Boolean.TRUE;
+            }).keySet();
+        }
+        for (Message message : committed) {
+            deliver(message, true, current, commitReceived);
+        }
+        for (Message message : aborted) {
+            deliver(message, false, current, abortReceived);
+        }
+    }
+
+    /**
+     * Log the commit decisions and wait until they are on the disk before any server hears about them,
+     * concurrent decisions share one disk flush
+     *
+     * @param messages the committed messages
+     */
+    private void logDecisions(List<Message> messages) {
+        try {
+            for (Message message : messages) {
+                unacknowledged.put(message.getMessageId(), message);
+                decisionLog.append(WriteAheadLog.COMMIT, message);
+            }
+            decisionLog.sync();
+        } catch (IOException e) {
+            log.error("Failed in logging the commit decisions of " + messages.size() + " messages");
+        }
+    }
+
+    /**
+     * Log that a committed transaction needs no recovery anymore, it is dropped at the next truncation.
+     * The servers have applied the commit, so the clients are told to drop the keys from their caches.
+     *
+     * @param message the committed message
+     */
+    private void endDecision(Message message) {
+        if (unacknowledged.remove(message.getMessageId()) == null) {
+            return;
+        }
+        invalidator.publish(message.getChanges().keySet(), message.getLsn());
+        try {
+            decisionLog.append(WriteAheadLog.END, message);
+            ended.incrementAndGet();
+        } catch (IOException e) {
+            log.error("Failed in logging the end of the message: " + message);
+        }
+    }
+
+    /**
+     * Rewrite the decision log with only the transactions not yet acknowledged by every server
+     */
+    private void truncateLog() {
+        if (ended.getAndSet(0) == 0) {
+            return;
+        }
+        try {
+            decisionLog.rewrite(() -> {
+                List<Map.Entry<Byte, Message>> records = new ArrayList<>();
+                unacknowledged.values().forEach((message) -> records.add(new AbstractMap.SimpleEntry<>(WriteAheadLog.COMMIT, message)));
+                return records;
             });
+            log.info("Decision log truncated, " + unacknowledged.size() + " transactions remain");
+        } catch (IOException e) {
+            log.error("Failed in truncating the decision log");
+        }
+    }
+
+    /**
+     * Read the decision log after a restart, the committed transactions without an end are in doubt
+     * and will be committed again on the servers as they register
+     *
+     * @throws IOException error in reading the log
+     */
+    private void recover() throws IOException {
+        decisionLog.read((kind, message) -> {
+            if (kind == WriteAheadLog.COMMIT) {
+                recovered.put(message.getMessageId(), message);
+            } else if (kind == WriteAheadLog.END) {
+                recovered.remove(message.getMessageId());
+            }
+        });
+        if (recovered.isEmpty()) {
+            return;
+        }
+        log.info("Recovered " + recovered.size() + " transactions in doubt from the decision log");
+        recovered.values().forEach(this::backup);
+        unacknowledged.putAll(recovered);
+        // the servers registering in the recovery window receive the decisions, then they are ended
+        timer.schedule(() -> executor.execute(() -> {
+            recovered.values().forEach(this::endDecision);
+            recovered.clear();
+        }), config.getRecoveryWindow(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the commit decisions recovered from the decision log to a server
+     *
+     * @param serverId id of the server
+     */
+    private void resolve(String serverId) {
+        HashRing current = ring.get();
+        List<Message> messages = new ArrayList<>();
+        for (Message message : recovered.values()) {
+            Message part = current.part(message, serverId);
+            if (part != null) {
+                messages.add(part);
+            }
+        }
+        log.info("Resolve " + messages.size() + " transactions in doubt with the server with id: " + serverId);
+        broadcast(Collections.singleton(serverId), CacheType.ACCEPT, (target, server) -> {
+            server.commitBatch(messages);
+            return Boolean.TRUE;
+        });
+    }
+
+    /**
+     * Assign the next log sequence number to a committed message if it has none,
+     * then backup the data in coordinator side and keep the message in the commit tail
+     * to sync with the crashed servers
+     *
+     * @param message the committed message
+     */
+    private void backup(Message message) {
+        if (message.getLsn() == 0) {
+            message.setLsn(lsn.incrementAndGet());
+        } else {
+            lsn.accumulateAndGet(message.getLsn(), Math::max);
+        }
+        cacheData.writeAll(message.getChanges(), message.getLsn());
+        cacheData.advanceLsn(message.getLsn());
+        commitTail.put(message.getLsn(), message);
+        // only keep the latest commits, a server missing older ones needs a full sync
+        if (tailSize.incrementAndGet() > config.getTailSize() && commitTail.pollFirstEntry() != null) {
+            tailSize.decrementAndGet();
+        }
+        log.info("Backup data: " + message);
+    }
+
+    /**
+     * Bring a reconnected server up to date, only the commits since the first one it missed are sent
+     * if they are still in the commit tail, otherwise the whole data is sent. Only the keys the server owns are sent.
+     *
+     * @param serverId id of the server
+     * @param server   the server api
+     * @param lastLsn  log sequence number of the latest commit applied by the server
+     */
+    private void catchUp(String serverId, Service server, long lastLsn) {
+        Long missed = cache.get(serverId);
+        if (missed == null) {
+            return;
+        }
+        // a commit applied before the latest may still be missed, so start from the earliest of both
+        long from = Math.min(missed, lastLsn + 1);
+        Map.Entry<Long, Message> oldest = commitTail.firstEntry();
+        HashRing current = ring.get();
+        try {
+            if (from > lsn.get()) {
+                log.info("Server with id: " + serverId + " missed no commit");
+            } else if (oldest != null && oldest.getKey() <= from) {
+                // send the missing tail in pages, in the order of the log sequence numbers
+                List<Message> page = new ArrayList<>();
+                int sent = 0;
+                for (Message message : commitTail.tailMap(from).values()) {
+                    Message part = current.part(message, serverId);
+                    if (part == null) {
+                        continue;
+                    }
+                    page.add(part);
+                    if (page.size() == config.getCatchUpPage()) {
+                        server.catchUp(page);
+                        sent += page.size();
+                        page = new ArrayList<>();
+                    }
+                }
+                if (!page.isEmpty()) {
+                    server.catchUp(page);
+                    sent += page.size();
+                }
+                log.info("Server with id: " + serverId + " caught up " + sent + " commits from lsn: " + from);
+            } else {
+                // the missing commits are no longer in the tail
+                transfer(serverId, server, current);
+            }
+            cache.remove(serverId, missed);
+            log.info("Server with id: " + serverId + " is now synchronized");
+        } catch (RemoteException e) {
+            log.error("Server with id: " + serverId + " lost connection in SYNC");
+        }
+    }
+
+    /**
+     * Send a call to the given servers at the same time and wait until every call returned or timed out,
+     * so the latency of a phase is the latency of the slowest server
+     *
+     * @param targets ids of the servers
+     * @param phase   the phase of the transaction, used for logging
+     * @param call    the remote call to be sent
+     * @return the result of each server that answered in time
+     */
+    private <T> Map<String, T> broadcast(Set<String> targets, CacheType phase, RemoteCall<T> call) {
+        Map<String, Future<T>> calls = new HashMap<>();
+        for (String key : targets) {
+            Service server = serverInfo.get(key);
+            if (server == null) {
+                continue;
+            }
+            try {
+                calls.put(key, caller.submit(() -> call.call(key, server)));
+            } catch (RejectedExecutionException e) {
+                log.error("Too many calls in flight, server with id: " + key + " is not called in " + phase);
+            }
+        }
+        Map<String, T> results = new HashMap<>();
+        long deadline = System.currentTimeMillis() + config.getCallTimeout();
+        calls.forEach((key, future) -> {
+            try {
+                results.put(key, future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                // handle if some server crash or is too slow, a call not started yet is not sent at all
+                future.cancel(false);
+                log.error("Server with id: " + key + " is unreachable in " + phase + ", try reconnection");
+            } catch (InterruptedException e) {
+                log.info("Broadcast interrupted");
+                Thread.currentThread().interrupt();
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Send the whole data the server owns to a server in compressed chunks of bounded size, only one chunk is in flight
+     * and a chunk without reply is sent again, so neither side holds more than a chunk in memory
+     *
+     * @param serverId id of the server
+     * @param server   the server api
+     * @param ring     the ring of the servers
+     * @throws RemoteException if a chunk is not stored after the retries, or the server lost the synchronization too often
+     */
+    private void transfer(String serverId, Service server, HashRing ring) throws RemoteException {
+        for (int attempt = 0; attempt <= config.getSyncRetries(); attempt++) {
+            if (transferOnce(serverId, server, ring)) {
+                return;
+            }
+            // the server lost the synchronization, e.g. it restarted, start again from the first chunk
+            log.warn("Server with id: " + serverId + " lost the synchronization, restart it from offset: 0, attempt: " + attempt);
         }
+        throw new RemoteException("Server with id: " + serverId + " lost the synchronization " + (config.getSyncRetries() + 1) + " times");
+    }
+
+    /**
+     * Send the whole data the server owns once, from the first chunk to the last one
+     *
+     * @param serverId id of the server
+     * @param server   the server api
+     * @param ring     the ring of the servers
+     * @return true if every chunk is stored, false if the server lost the synchronization
+     * @throws RemoteException if a chunk is not stored after the retries
+     */
+    private boolean transferOnce(String serverId, Service server, HashRing ring) throws RemoteException {
+        UUID syncId = UUID.randomUUID();
+        long snapshotLsn = lsn.get();
+        // the backup data misses the commits of other coordinators or before a restart, then no key is deleted
+        boolean whole = complete;
+        Iterator<Map.Entry<String, String>> iterator = cacheData.getDB().entrySet().iterator();
+        long offset = 0;
+        int chunks = 0;
+        boolean last;
+        do {
+            List<Map.Entry<String, String>> entities = new ArrayList<>();
+            long size = 0;
+            while (iterator.hasNext() && size < config.getSyncChunkSize()) {
+                Map.Entry<String, String> entity = iterator.next();
+                if (!ring.owns(serverId, entity.getKey())) {
+                    continue;
+                }
+                entities.add(new AbstractMap.SimpleImmutableEntry<>(entity));
+                size += entity.getKey().length() + entity.getValue().length();
+            }
+            last = !iterator.hasNext();
+            SnapshotChunk chunk;
+            try {
+                chunk = new SnapshotChunk(syncId, offset, entities.size(), SnapshotCodec.encode(entities), last, snapshotLsn, whole);
+            } catch (IOException e) {
+                throw new RemoteException("Failed in encoding the data to server with id: " + serverId, e);
+            }
+            long stored = send(serverId, server, chunk);
+            if (stored != offset + entities.size()) {
+                log.warn("Server with id: " + serverId + " stored " + stored + " entities, expected " + (offset + entities.size()));
+                return false;
+            }
+            offset = stored;
+            chunks++;
+        } while (!last);
+        log.info("Server with id: " + serverId + " is synchronized with " + offset + " entities in " + chunks + " chunks");
+        return true;
+    }
+
+    /**
+     * Send a chunk of the data to a server until it replies, only a lost reply is retried
+     *
+     * @param serverId id of the server
+     * @param server   the server api
+     * @param chunk    the chunk
+     * @return the number of entities the server stored, the offset of the next chunk unless the server lost the synchronization
+     * @throws RemoteException if no reply comes after the retries
+     */
+    private long send(String serverId, Service server, SnapshotChunk chunk) throws RemoteException {
+        RemoteException failure = null;
+        for (int attempt = 0; attempt <= config.getSyncRetries(); attempt++) {
+            try {
+                return server.syncChunk(chunk);
+            } catch (RemoteException e) {
+                log.warn("Server with id: " + serverId + " did not store the chunk at offset: " + chunk.getOffset() + ", attempt: " + attempt);
+                failure = e;
+            }
+        }
+        throw failure;
     }
 
     /**
      * Set cache
      *
      * @param serverId the server id
+     * @param lsn      log sequence number of the commit the server missed
+     */
+    public void setCache(String serverId, long lsn) {
+        cache.merge(serverId, lsn, Math::min);
+    }
+
+    /**
+     * A decision waiting to be sent to a server in pipelined mode
+     */
+    private static class PendingDecision {
+
+        // the decided transaction
+        private final TransactionState state;
+
+        // the time the decision was queued
+        private final long time;
+
+        private PendingDecision(TransactionState state, long time) {
+            this.state = state;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A remote call to a single server
      */
-    public void setCache(String serverId) {
-        cache.add(serverId);
+    @FunctionalInterface
+    private interface RemoteCall<T> {
+        T call(String target, Service server) throws RemoteException;
     }
 }
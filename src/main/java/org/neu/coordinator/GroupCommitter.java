@@ -0,0 +1,108 @@
+package org.neu.coordinator;
+
+import org.neu.protocol.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collect the messages arriving within a short window or up to a size limit,
+ * and hand them over as one batch to run a single transaction round
+ */
+public class GroupCommitter {
+
+    // the max number of messages in a batch
+    private final int maxBatchSize;
+
+    // the max time in milliseconds the first message of a batch waits for others
+    private final long window;
+
+    // run the transaction round of a batch
+    private final Consumer<List<Message>> flusher;
+
+    // timer for the window
+    private final ScheduledExecutorService timer;
+
+    // thread pool to run the flushed batches
+    private final Executor executor;
+
+    // the batch being collected
+    private List<Message> pending;
+
+    // the window of the batch being collected
+    private ScheduledFuture<?> windowTask;
+
+    public GroupCommitter(int maxBatchSize, long window, Consumer<List<Message>> flusher,
+                          ScheduledExecutorService timer, Executor executor) {
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+        this.flusher = flusher;
+        this.timer = timer;
+        this.executor = executor;
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Add a message to the batch being collected, the batch is flushed when it is full
+     *
+     * @param message the message to be transacted
+     */
+    public void add(Message message) {
+        List<Message> batch = null;
+        synchronized (this) {
+            pending.add(message);
+            if (pending.size() >= maxBatchSize) {
+                batch = drain();
+            } else if (pending.size() == 1) {
+                // the first message opens the window
+                windowTask = timer.schedule(this::flushWindow, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            submit(batch);
+        }
+    }
+
+    /**
+     * Flush the batch when its window expires
+     */
+    private void flushWindow() {
+        List<Message> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = drain();
+        }
+        submit(batch);
+    }
+
+    /**
+     * Take the batch being collected and start a new one, must hold the lock
+     *
+     * @return the collected batch
+     */
+    private List<Message> drain() {
+        List<Message> batch = pending;
+        pending = new ArrayList<>();
+        if (windowTask != null) {
+            windowTask.cancel(false);
+            windowTask = null;
+        }
+        return batch;
+    }
+
+    /**
+     * Run the transaction round of a batch on the pool
+     *
+     * @param batch the batch
+     */
+    private void submit(List<Message> batch) {
+        executor.execute(() -> flusher.accept(batch));
+    }
+}
@@ -0,0 +1,150 @@
+package org.neu.coordinator;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.api.Client;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Push the keys changed by the acknowledged commits to the subscribed clients, so the clients can drop them
+ * from their caches. The keys committed within the window are sent in one callback, in the order of the commits.
+ * A client that cannot be reached is dropped, it finds out at its next subscription.
+ */
+@Slf4j
+public class Invalidator {
+
+    // the subscribed clients by address
+    private final Map<String, Client> subscribers;
+
+    // the keys waiting to be sent, guarded by itself
+    private final Set<String> pending;
+
+    // the time the earliest pending key was committed, 0 if nothing is pending
+    private long since;
+
+    // log sequence number of the latest pending commit
+    private long lsn;
+
+    // time in milliseconds the keys wait for others before they are sent
+    private final long window;
+
+    // sends the callbacks one batch at a time
+    private final ScheduledExecutorService sender;
+
+    // number of callbacks sent
+    private final AtomicLong sent;
+
+    public Invalidator(long window) {
+        this.subscribers = new ConcurrentHashMap<>();
+        this.pending = new LinkedHashSet<>();
+        this.window = window;
+        this.sender = Executors.newSingleThreadScheduledExecutor();
+        this.sent = new AtomicLong();
+    }
+
+    /**
+     * Subscribe a client
+     *
+     * @param hostname hostname of the client
+     * @param port     port of the client registry
+     * @return true if the client was not subscribed
+     * @throws RemoteException if the client cannot be reached
+     */
+    public boolean subscribe(String hostname, int port) throws RemoteException {
+        String address = hostname + ":" + port;
+        if (subscribers.containsKey(address)) {
+            return false;
+        }
+        try {
+            Client stub = (Client) Naming.lookup("rmi://" + InetAddress.getByName(hostname).getHostAddress() + ":" + port + "/Client");
+            boolean added = subscribers.putIfAbsent(address, stub) == null;
+            if (added) {
+                log.info("Client at " + address + " subscribed to the invalidations, subscribers: " + subscribers.size());
+            }
+            return added;
+        } catch (NotBoundException | MalformedURLException | UnknownHostException e) {
+            throw new RemoteException("Cannot find the client at " + address, e);
+        }
+    }
+
+    /**
+     * Queue the keys changed by an acknowledged commit
+     *
+     * @param keys the keys
+     * @param lsn  log sequence number of the commit
+     */
+    public void publish(Collection<String> keys, long lsn) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                since = System.currentTimeMillis();
+                sender.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+            pending.addAll(keys);
+            this.lsn = Math.max(this.lsn, lsn);
+        }
+    }
+
+    /**
+     * Send the pending keys to every subscriber
+     */
+    private void flush() {
+        List<String> keys;
+        long time;
+        long latest;
+        synchronized (pending) {
+            keys = new ArrayList<>(pending);
+            time = since;
+            latest = lsn;
+            pending.clear();
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        subscribers.forEach((address, stub) -> {
+            try {
+                stub.invalidate(keys, latest, time);
+                sent.incrementAndGet();
+            } catch (RemoteException e) {
+                subscribers.remove(address, stub);
+                log.error("Client at " + address + " is unreachable in sending the invalidations, unsubscribed");
+            }
+        });
+    }
+
+    /**
+     * Get the number of callbacks sent
+     *
+     * @return the number of callbacks sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Get the number of subscribers
+     *
+     * @return the number of subscribers
+     */
+    public int size() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,63 @@
+package org.neu.coordinator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How often the coordinator took each path of the protocol, the fast paths skip some of the rounds of a full
+ * two-phase commit
+ */
+public class ProtocolCounters {
+
+    // messages voted in a full two-phase commit round
+    private final LongAdder twoPhase = new LongAdder();
+
+    // messages committed by their single participant in one round
+    private final LongAdder onePhaseCommits = new LongAdder();
+
+    // messages rejected by their single participant in one round
+    private final LongAdder onePhaseAborts = new LongAdder();
+
+    // messages rejected by the coordinator without asking any server
+    private final LongAdder earlyRejections = new LongAdder();
+
+    // aborts completed without waiting for the acks of the servers
+    private final LongAdder presumedAborts = new LongAdder();
+
+    public void twoPhase(int messages) {
+        twoPhase.add(messages);
+    }
+
+    public void onePhase(boolean committed) {
+        (committed ? onePhaseCommits : onePhaseAborts).increment();
+    }
+
+    public void earlyRejection() {
+        earlyRejections.increment();
+    }
+
+    public void presumedAbort(int messages) {
+        presumedAborts.add(messages);
+    }
+
+    /**
+     * Get the counters by name
+     *
+     * @return the value of each counter
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("twoPhase", twoPhase.sum());
+        counters.put("onePhaseCommits", onePhaseCommits.sum());
+        counters.put("onePhaseAborts", onePhaseAborts.sum());
+        counters.put("earlyRejections", earlyRejections.sum());
+        counters.put("presumedAborts", presumedAborts.sum());
+        return counters;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,180 @@
+package org.neu.coordinator;
+
+import lombok.Getter;
+import org.neu.partition.HashRing;
+import org.neu.protocol.Message;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State of one in-flight transaction on the coordinator, keyed by the message id
+ */
+@Getter
+public class TransactionState {
+
+    // the message to be transacted
+    private final Message message;
+
+    // servers asked to vote in this transaction
+    private final Set<String> participants;
+
+    // the ring the participants were chosen by
+    private final HashRing ring;
+
+    // vote of each server, true for commit and false for abort
+    private final Map<String, Boolean> votes;
+
+    // servers that acknowledged the decision
+    private final Set<String> acks;
+
+    // current phase of the transaction
+    private final AtomicReference<CacheType> phase;
+
+    // servers the decision was sent to
+    private volatile Set<String> recipients;
+
+    // deadline of the current phase in milliseconds
+    private volatile long deadline;
+
+    // pending timeout task of the current phase
+    private volatile ScheduledFuture<?> timeout;
+
+    public TransactionState(Message message, Set<String> participants, HashRing ring, long deadline) {
+        this.message = message;
+        this.participants = Collections.unmodifiableSet(participants);
+        this.ring = ring;
+        this.votes = new ConcurrentHashMap<>();
+        this.acks = ConcurrentHashMap.newKeySet();
+        this.phase = new AtomicReference<>(CacheType.REQ_PREPARE);
+        this.recipients = Collections.emptySet();
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get the part of the message a participant owns
+     *
+     * @param serverId id of the server
+     * @return the operations of the message on the keys the server owns
+     */
+    public Message partOf(String serverId) {
+        return ring.part(message, serverId);
+    }
+
+    /**
+     * Record the vote of a server
+     *
+     * @param serverId id of the server
+     * @param accept true if the server votes for commit
+     */
+    public void vote(String serverId, boolean accept) {
+        votes.put(serverId, accept);
+    }
+
+    /**
+     * Record the ack of a server
+     *
+     * @param serverId id of the server
+     */
+    public void ack(String serverId) {
+        acks.add(serverId);
+    }
+
+    /**
+     * Determine if some server voted for aborting
+     *
+     * @return true if there is at least one rejection
+     */
+    public boolean hasRejection() {
+        return votes.containsValue(false);
+    }
+
+    /**
+     * Determine if every participant has voted
+     *
+     * @return true if the vote set is complete
+     */
+    public boolean isVoteComplete() {
+        return votes.keySet().containsAll(participants);
+    }
+
+    /**
+     * Determine if every recipient of the decision has acknowledged
+     *
+     * @return true if the ack set is complete
+     */
+    public boolean isAckComplete() {
+        return phase.get() != CacheType.REQ_PREPARE && acks.containsAll(recipients);
+    }
+
+    /**
+     * Move the transaction from the prepare phase to the decision, only the first caller wins
+     *
+     * @param decision ACCEPT for commit, REJECT for abort
+     * @return true if the decision is made by this call
+     */
+    public boolean decide(CacheType decision) {
+        return phase.compareAndSet(CacheType.REQ_PREPARE, decision);
+    }
+
+    /**
+     * Move the transaction from the decision to the completion, only the first caller wins
+     *
+     * @return true if the transaction is completed by this call
+     */
+    public boolean complete() {
+        CacheType current = phase.get();
+        if (current == CacheType.ACCEPT) {
+            return phase.compareAndSet(current, CacheType.ACK_COMMIT);
+        }
+        if (current == CacheType.REJECT) {
+            return phase.compareAndSet(current, CacheType.ACK_ABORT);
+        }
+        return false;
+    }
+
+    /**
+     * Determine if the transaction is decided to commit
+     *
+     * @return true if committed
+     */
+    public boolean isCommitted() {
+        CacheType current = phase.get();
+        return current == CacheType.ACCEPT || current == CacheType.ACK_COMMIT;
+    }
+
+    /**
+     * Set the servers the decision is sent to
+     *
+     * @param recipients ids of the servers
+     */
+    public void setRecipients(Set<String> recipients) {
+        this.recipients = Collections.unmodifiableSet(recipients);
+    }
+
+    /**
+     * Replace the timeout task of the current phase, the previous one is cancelled
+     *
+     * @param timeout the timeout task
+     * @param deadline deadline of the phase in milliseconds
+     */
+    public void setTimeout(ScheduledFuture<?> timeout, long deadline) {
+        cancelTimeout();
+        this.timeout = timeout;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the pending timeout task
+     */
+    public void cancelTimeout() {
+        ScheduledFuture<?> current = timeout;
+        if (current != null) {
+            current.cancel(false);
+        }
+    }
+}
@@ -1,18 +1,100 @@
 package org.neu.db;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
- * Database
+ * Database, reads never block and writes only contend on the same bin of the map.
+ * The keys are indexed in order as well for range and prefix scans, point lookups do not touch the index.
+ * Every write is a new version of its key tagged with the commit sequence of this database, a reader can pin
+ * the sequence in a view and read the database as it was without taking any lock. The versions older than
+ * every view are dropped by {@link #collect()}.
+ * A version keeps the log sequence number of the commit that wrote it, a commit is only applied to the keys
+ * it is newer than, so a late replay of an older commit never undoes a newer one.
  */
 public class DB {
 
-    // create a hash map to storage key value pairs
-    private final Map<String, String> db;
+    // the versions of each key, the newest first
+    private final Map<String, Version> db;
+
+    // the keys in order, a key is added and removed while its bin of the map is locked
+    private final NavigableSet<String> index;
+
+    // log sequence number of the latest commit applied
+    private final AtomicLong lsn;
+
+    // keep the older versions for the views, otherwise a write replaces the value
+    private final boolean versioned;
+
+    // the sequence of the latest write handed out, a write takes the next one without any lock
+    private final AtomicLong next;
+
+    // the sequence every write at or below is installed, a view opened at it sees whole writes only
+    private volatile long sequence;
+
+    // the sequences of the writes installed above the published sequence, waiting for the writes before them
+    private final Set<Long> installed;
+
+    // number of open views at each sequence
+    private final ConcurrentSkipListMap<Long, Integer> pins;
+
+    // the versions at or below it may be dropped, a view is only opened above it
+    private volatile long horizon;
+
+    // keys with more than one version or deleted, to be visited by the next collection
+    private final Set<String> dirty;
+
+    // the latest values as a map
+    private final Map<String, String> latest;
+
+    // time in milliseconds a deleted key keeps the log sequence number of its delete
+    private final long tombstoneGrace;
 
     public DB() {
-        this.db = new HashMap<>();
+        this(true);
+    }
+
+    /**
+     * Create a database
+     *
+     * @param versioned true to keep the older versions for the views, false if only the latest values are read
+     */
+    public DB(boolean versioned) {
+        this(versioned, 0);
+    }
+
+    /**
+     * Create a database
+     *
+     * @param versioned      true to keep the older versions for the views, false if only the latest values are read
+     * @param tombstoneGrace time in milliseconds a deleted key is kept to reject the older commits of the key
+     *                       replayed after its delete, only for a database keeping the versions
+     */
+    public DB(boolean versioned, long tombstoneGrace) {
+        this.tombstoneGrace = tombstoneGrace;
+        this.db = new ConcurrentHashMap<>();
+        this.index = new ConcurrentSkipListSet<>();
+        this.lsn = new AtomicLong();
+        this.versioned = versioned;
+        this.next = new AtomicLong();
+        this.installed = ConcurrentHashMap.newKeySet();
+        this.pins = new ConcurrentSkipListMap<>();
+        this.dirty = ConcurrentHashMap.newKeySet();
+        this.latest = new LatestView();
     }
 
     /**
@@ -21,8 +103,9 @@ public class DB {
      * @param key the key to be found
      * @return the value of the key if the key is available, otherwise null
      */
-    public synchronized String get(String key) {
-        return db.get(key);
+    public String get(String key) {
+        Version head = db.get(key);
+        return head == null ? null : head.value;
     }
 
     /**
@@ -31,8 +114,8 @@ public class DB {
      * @param key the key to be inserted or updated
      * @param value the value of the key
      */
-    public synchronized void put(String key, String value) {
-        db.put(key, value);
+    public void put(String key, String value) {
+        write(key, value);
     }
 
     /**
@@ -40,8 +123,145 @@ public class DB {
      *
      * @param key the key to be deleted
      */
-    public synchronized void delete(String key) {
-        db.remove(key);
+    public void delete(String key) {
+        write(key, null);
+    }
+
+    /**
+     * Write several keys at once, a view sees all of the writes or none of them
+     *
+     * @param changes the new value of each key, null to delete the key
+     */
+    public void writeAll(Map<String, String> changes) {
+        writeAll(changes, 0);
+    }
+
+    /**
+     * Write the changes of a commit, a key already written by the commit or a later one is left as it is,
+     * a view sees all of the writes or none of them
+     *
+     * @param changes the new value of each key, null to delete the key
+     * @param lsn     log sequence number of the commit, 0 to write every key
+     */
+    public void writeAll(Map<String, String> changes, long lsn) {
+        long[] at = new long[1];
+        try {
+            changes.forEach((key, value) -> install(key, value, lsn, at));
+        } finally {
+            if (at[0] != 0) {
+                publish(at[0]);
+            }
+        }
+    }
+
+    /**
+     * Add a version of a key, the version is visible to the views opened after it
+     *
+     * @param key   the key
+     * @param value the value, null to delete the key
+     */
+    private void write(String key, String value) {
+        writeAll(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Add a version of a key, only the bin of the key in the map is locked. The first key of a write takes
+     * the sequence of the write in its bin, so a later write of the key has a later sequence
+     *
+     * @param key   the key
+     * @param value the value, null to delete the key
+     * @param lsn   log sequence number of the commit, 0 if unknown
+     * @param at    the sequence of the write, 0 until the first key takes it
+     */
+    private void install(String key, String value, long lsn, long[] at) {
+        db.compute(key, (k, head) -> {
+            if (lsn != 0 && head != null && head.lsn >= lsn) {
+                // the key is written by this commit or a later one already
+                return head;
+            }
+            if (at[0] == 0) {
+                at[0] = next.incrementAndGet();
+            }
+            return push(k, head, value, at[0], lsn);
+        });
+    }
+
+    /**
+     * Write a key unless it is written after a sequence, the synchronized data never overwrites
+     * a commit applied since the synchronization started
+     *
+     * @param key   the key
+     * @param value the value, null to delete the key
+     * @param at    the sequence
+     */
+    public void writeIfUnchangedSince(String key, String value, long at) {
+        long[] sequence = new long[1];
+        try {
+            db.compute(key, (k, head) -> {
+                if (head != null && head.sequence > at) {
+                    return head;
+                }
+                sequence[0] = next.incrementAndGet();
+                return push(k, head, value, sequence[0], 0);
+            });
+        } finally {
+            if (sequence[0] != 0) {
+                publish(sequence[0]);
+            }
+        }
+    }
+
+    /**
+     * Get the new head of the versions of a key, the caller holds the bin of the key
+     *
+     * @param key      the key
+     * @param head     the current head, null if the key is absent
+     * @param value    the value, null to delete the key
+     * @param sequence the sequence of the write
+     * @param lsn      log sequence number of the commit, 0 if unknown
+     * @return the new head, null to remove the key
+     */
+    private Version push(String key, Version head, String value, long sequence, long lsn) {
+        if (head == null) {
+            if (value == null) {
+                if (!versioned || lsn == 0) {
+                    return null;
+                }
+                // the delete of an absent key still rejects the older commits of the key until it is collected
+                dirty.add(key);
+                return new Version(sequence, lsn, null, null);
+            }
+            // only a new key changes the index
+            index.add(key);
+            return new Version(sequence, lsn, value, null);
+        }
+        if (!versioned) {
+            if (value == null) {
+                index.remove(key);
+                return null;
+            }
+            return new Version(sequence, lsn, value, null);
+        }
+        if (head.value == null && value == null && lsn <= head.lsn) {
+            return head;
+        }
+        dirty.add(key);
+        return new Version(sequence, lsn, value, head);
+    }
+
+    /**
+     * Mark a write installed and publish the sequence as far as every write before it is installed,
+     * whichever writer installs the missing write publishes the ones after it
+     *
+     * @param at the sequence of the write
+     */
+    private void publish(long at) {
+        installed.add(at);
+        long current;
+        // only the writer removing the next sequence moves the published one, so it never goes back
+        while (installed.remove((current = sequence) + 1)) {
+            sequence = current + 1;
+        }
     }
 
     /**
@@ -50,24 +270,386 @@ public class DB {
      * @param key key
      * @return true if it has, otherwise false
      */
-    public synchronized boolean isContain(String key) { return db.containsKey(key); }
+    public boolean isContain(String key) { return get(key) != null; }
 
     /**
-     * Get the database entities
+     * Get the database entities, the view is live and read-only, iterating it does not block writers
      *
      * @return all entities
      */
-    public synchronized Map<String, String> getDB() {
-        return db;
+    public Map<String, String> getDB() {
+        return latest;
     }
 
     /**
-     * Store amount of entities
+     * Store amount of entities, readers keep running and see the entities as they are stored
      *
      * @param data data
      */
-    public synchronized void addAll(Map<String, String> data) {
-        db.putAll(data);
+    public void addAll(Map<String, String> data) {
+        data.forEach(this::put);
     }
 
+    /**
+     * Get the entities of a range of keys in order. The scan does not block writers,
+     * an entity stored or deleted during the scan may or may not be seen.
+     *
+     * @param start the first key of the range, null to start from the smallest key
+     * @param end   the key after the range, null to scan to the largest key
+     * @param limit max number of entities
+     * @return the entities in the order of their keys
+     */
+    public Map<String, String> scan(String start, String end, int limit) {
+        return scan(start, end, limit, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the entities of a range of keys in order as they were at a sequence
+     *
+     * @param start the first key of the range, null to start from the smallest key
+     * @param end   the key after the range, null to scan to the largest key
+     * @param limit max number of entities
+     * @param at    the sequence
+     * @return the entities in the order of their keys
+     */
+    Map<String, String> scan(String start, String end, int limit, long at) {
+        NavigableSet<String> keys = index;
+        if (start != null && end != null) {
+            if (start.compareTo(end) >= 0) {
+                return Collections.emptyMap();
+            }
+            keys = index.subSet(start, true, end, false);
+        } else if (start != null) {
+            keys = index.tailSet(start, true);
+        } else if (end != null) {
+            keys = index.headSet(end, false);
+        }
+        Map<String, String> entities = new LinkedHashMap<>();
+        for (String key : keys) {
+            if (entities.size() >= limit) {
+                break;
+            }
+            String value = get(key, at);
+            // the key is deleted after it is found in the index
+            if (value != null) {
+                entities.put(key, value);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Get the key after all the keys starting with a prefix
+     *
+     * @param prefix the prefix
+     * @return the key, null if no key is after them
+     */
+    public static String prefixEnd(String prefix) {
+        StringBuilder end = new StringBuilder(prefix);
+        while (end.length() > 0) {
+            char last = end.charAt(end.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                end.setCharAt(end.length() - 1, (char) (last + 1));
+                return end.toString();
+            }
+            end.setLength(end.length() - 1);
+        }
+        return null;
+    }
+
+    /**
+     * Get the value of a key as it was at a sequence
+     *
+     * @param key the key
+     * @param at  the sequence
+     * @return the value, null if the key was absent
+     */
+    String get(String key, long at) {
+        Version version = db.get(key);
+        // the versions a view needs are never dropped, so the walk ends before the cut
+        while (version != null && version.sequence > at) {
+            version = version.older;
+        }
+        return version == null ? null : version.value;
+    }
+
+    /**
+     * Open a view of the database at the latest write, the view must be closed to let the versions it reads be dropped
+     *
+     * @return the view
+     */
+    public ReadView openView() {
+        if (!versioned) {
+            throw new IllegalStateException("The database keeps no versions for the views");
+        }
+        while (true) {
+            long at = sequence;
+            pins.merge(at, 1, Integer::sum);
+            // a collection that started before the pin may drop the versions of this sequence, take a newer one
+            if (horizon <= at) {
+                return new ReadView(this, at);
+            }
+            unpin(at);
+        }
+    }
+
+    /**
+     * Release the sequence of a closed view
+     *
+     * @param at the sequence
+     */
+    void unpin(long at) {
+        pins.computeIfPresent(at, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Drop the versions no view can read, a key deleted before every view is dropped as well
+     * once it is deleted for longer than the grace time
+     *
+     * @return the number of keys whose versions are dropped
+     */
+    public synchronized int collect() {
+        // the horizon is published before the pins are read, so a view pinned after that sees it and moves on
+        long candidate = sequence;
+        horizon = candidate;
+        Map.Entry<Long, Integer> oldest = pins.firstEntry();
+        long floor = oldest == null ? candidate : Math.min(candidate, oldest.getKey());
+        List<String> again = new ArrayList<>();
+        long buried = System.currentTimeMillis() - tombstoneGrace;
+        int collected = 0;
+        Iterator<String> iterator = dirty.iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            iterator.remove();
+            boolean[] pending = new boolean[1];
+            db.computeIfPresent(key, (k, head) -> {
+                Version keep = head;
+                while (keep != null && keep.sequence > floor) {
+                    keep = keep.older;
+                }
+                // the newer versions are still needed by some view
+                pending[0] = keep != head;
+                if (keep == null) {
+                    return head;
+                }
+                keep.older = null;
+                if (keep == head && head.value == null) {
+                    // the delete is kept until no replay of an older commit of the key is expected
+                    if (head.time > buried) {
+                        pending[0] = true;
+                        return head;
+                    }
+                    index.remove(k);
+                    return null;
+                }
+                return head;
+            });
+            if (pending[0]) {
+                again.add(key);
+            } else {
+                collected++;
+            }
+        }
+        dirty.addAll(again);
+        return collected;
+    }
+
+    /**
+     * Get the sequence of the latest write every write before is installed as well
+     *
+     * @return the sequence, 0 if nothing is written
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Delete the keys not written after a sequence, i.e. the keys whose latest write is at or before it.
+     * A key written meanwhile is kept.
+     *
+     * @param at the sequence
+     * @return the number of keys deleted
+     */
+    public int deleteUnchangedSince(long at) {
+        int deleted = 0;
+        for (Map.Entry<String, Version> entry : db.entrySet()) {
+            if (entry.getValue().value == null || entry.getValue().sequence > at) {
+                continue;
+            }
+            long[] sequence = new long[1];
+            try {
+                // check again in the bin of the key, the key may be written since it was read
+                db.computeIfPresent(entry.getKey(), (k, head) -> {
+                    if (head.value == null || head.sequence > at) {
+                        return head;
+                    }
+                    sequence[0] = next.incrementAndGet();
+                    return push(k, head, null, sequence[0], 0);
+                });
+            } finally {
+                if (sequence[0] != 0) {
+                    publish(sequence[0]);
+                }
+            }
+            if (sequence[0] != 0) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the number of open views
+     *
+     * @return the number of open views
+     */
+    public int getViews() {
+        int views = 0;
+        for (int count : pins.values()) {
+            views += count;
+        }
+        return views;
+    }
+
+    /**
+     * Get the log sequence number of the latest commit applied
+     *
+     * @return the log sequence number, 0 if nothing is applied
+     */
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    /**
+     * Get the log sequence number of the latest commit applied to a key
+     *
+     * @param key the key
+     * @return the log sequence number, 0 if the key is absent or the commit is unknown
+     */
+    public long getLsn(String key) {
+        Version head = db.get(key);
+        return head == null ? 0 : head.lsn;
+    }
+
+    /**
+     * Get the log sequence number of the latest commit applied to some of the keys, a key deleted
+     * and collected is not counted, so the number may be lower than the commits applied
+     *
+     * @param keys the keys to count
+     * @return the log sequence number, 0 if none of the keys is written by a known commit
+     */
+    public long getLsn(Predicate<String> keys) {
+        long latest = 0;
+        for (Map.Entry<String, Version> entry : db.entrySet()) {
+            if (entry.getValue().lsn > latest && keys.test(entry.getKey())) {
+                latest = entry.getValue().lsn;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Record that a commit is applied, the log sequence number only moves forward
+     *
+     * @param lsn log sequence number of the commit
+     */
+    public void advanceLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    /**
+     * A version of a key
+     */
+    private static class Version {
+
+        // the sequence of the write
+        private final long sequence;
+
+        // log sequence number of the commit of the write, 0 if unknown
+        private final long lsn;
+
+        // the value, null if the key is deleted
+        private final String value;
+
+        // the time of a delete, 0 for a value
+        private final long time;
+
+        // the version before it, cut once no view reads it
+        private volatile Version older;
+
+        private Version(long sequence, long lsn, String value, Version older) {
+            this.sequence = sequence;
+            this.lsn = lsn;
+            this.value = value;
+            this.time = value == null ? System.currentTimeMillis() : 0;
+            this.older = older;
+        }
+    }
+
+    /**
+     * The latest values as a read-only map, the deleted keys are left out
+     */
+    private class LatestView extends AbstractMap<String, String> {
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? DB.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    Iterator<Entry<String, Version>> versions = db.entrySet().iterator();
+                    return new Iterator<Entry<String, String>>() {
+
+                        // the next entity with a value
+                        private Entry<String, String> next = advance();
+
+                        private Entry<String, String> advance() {
+                            while (versions.hasNext()) {
+                                Entry<String, Version> entry = versions.next();
+                                if (entry.getValue().value != null) {
+                                    return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().value);
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = next;
+                            next = advance();
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Version version : db.values()) {
+                        if (version.value != null) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
 }
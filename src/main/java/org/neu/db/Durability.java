@@ -0,0 +1,13 @@
+package org.neu.db;
+
+/**
+ * When an appended log record is flushed to the disk
+ */
+public enum Durability {
+    // every sync flushes the disk on its own
+    PER_COMMIT,
+    // concurrent syncs share one disk flush
+    GROUP,
+    // syncs return right away and the disk is flushed in the background
+    ASYNC
+}
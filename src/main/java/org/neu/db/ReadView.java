@@ -0,0 +1,68 @@
+package org.neu.db;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A view of the database at one commit sequence. Reading the view takes no lock and sees every write
+ * up to the sequence and none after it, however many commits are applied meanwhile.
+ * The versions the view reads are kept until it is closed.
+ */
+public class ReadView implements AutoCloseable {
+
+    // the database
+    private final DB db;
+
+    // the sequence of the view
+    private final long sequence;
+
+    // true once the view is closed
+    private final AtomicBoolean closed;
+
+    ReadView(DB db, long sequence) {
+        this.db = db;
+        this.sequence = sequence;
+        this.closed = new AtomicBoolean();
+    }
+
+    /**
+     * Get a value by a key as it was at the sequence of the view
+     *
+     * @param key the key to be found
+     * @return the value of the key if the key was available, otherwise null
+     */
+    public String get(String key) {
+        return db.get(key, sequence);
+    }
+
+    /**
+     * Get the entities of a range of keys in order as they were at the sequence of the view
+     *
+     * @param start the first key of the range, null to start from the smallest key
+     * @param end   the key after the range, null to scan to the largest key
+     * @param limit max number of entities
+     * @return the entities in the order of their keys
+     */
+    public Map<String, String> scan(String start, String end, int limit) {
+        return db.scan(start, end, limit, sequence);
+    }
+
+    /**
+     * Get the commit sequence of the view
+     *
+     * @return the sequence
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Release the view, closing it again does nothing
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            db.unpin(sequence);
+        }
+    }
+}
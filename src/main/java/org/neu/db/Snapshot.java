@@ -0,0 +1,192 @@
+package org.neu.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.protocol.MessageCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the database on the disk, laid out as [magic][lsn][key length][key][value length][value][key lsn]...[-1][count][crc32].
+ * The key lsn is the log sequence number of the commit of the value, a snapshot of the older layout has none.
+ * The snapshot is written from a live view of the database, so it is fuzzy and replaying the write-ahead log
+ * after loading it brings the database to the point of the latest commit.
+ */
+@Slf4j
+public final class Snapshot {
+
+    // marks the start of a snapshot file
+    private static final int MAGIC = 0x534E5032;
+
+    // marks the start of a snapshot file without the lsn of each key
+    private static final int MAGIC_V1 = 0x534E4150;
+
+    // marks the end of the entities
+    private static final int END = -1;
+
+    // the max size of a mapped region of the file
+    private static final long REGION = 1L << 30;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Write the entities of the database to the snapshot file, the file is written aside and moved over the old one,
+     * so a crash keeps one of them intact. Writers of the database are not blocked.
+     *
+     * @param db   the database
+     * @param file the snapshot file
+     * @return the number of entities written
+     * @throws IOException error in writing the file
+     */
+    public static long write(DB db, Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeLong(db.getLsn());
+            for (Map.Entry<String, String> entity : db.getDB().entrySet()) {
+                MessageCodec.writeString(out, entity.getKey());
+                MessageCodec.writeString(out, entity.getValue());
+                out.writeLong(db.getLsn(entity.getKey()));
+                count++;
+            }
+            out.writeInt(END);
+            out.writeLong(count);
+            // the checksum covers everything before it
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Load the snapshot file into the database, the file is mapped in memory instead of read through a stream
+     *
+     * @param file the snapshot file
+     * @param db   the database
+     * @return the number of entities loaded, 0 if there is no snapshot
+     * @throws IOException error in reading the file or the file is corrupted
+     */
+    public static long load(Path file, DB db) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 28) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+            // verify the whole file before touching the database
+            CRC32 checksum = new CRC32();
+            for (long position = 0; position < size - 4; position += REGION) {
+                checksum.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, size - 4 - position)));
+            }
+            if ((int) checksum.getValue() != channel.map(FileChannel.MapMode.READ_ONLY, size - 4, 4).getInt()) {
+                throw new IOException("Snapshot " + file + " is corrupted");
+            }
+            Reader reader = new Reader(channel, size - 4);
+            int magic = reader.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("File " + file + " is not a snapshot");
+            }
+            db.advanceLsn(reader.readLong());
+            long count = 0;
+            int length;
+            while ((length = reader.readInt()) != END) {
+                String key = reader.readString(length);
+                String value = reader.readString(reader.readInt());
+                db.writeAll(Collections.singletonMap(key, value), magic == MAGIC ? reader.readLong() : 0);
+                count++;
+            }
+            if (reader.readLong() != count) {
+                throw new IOException("Snapshot " + file + " is corrupted");
+            }
+            log.info("Loaded " + count + " entities from the snapshot " + file);
+            return count;
+        }
+    }
+
+    /**
+     * Sequential reader over a file mapped region by region, so a file larger than a single mapping is supported
+     */
+    private static class Reader {
+
+        // the file
+        private final FileChannel channel;
+
+        // the end of the readable part of the file
+        private final long limit;
+
+        // the current mapped region
+        private MappedByteBuffer buffer;
+
+        // the file position of the start of the current region
+        private long base;
+
+        private Reader(FileChannel channel, long limit) throws IOException {
+            this.channel = channel;
+            this.limit = limit;
+            map(0);
+        }
+
+        private int readInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        private long readLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        private String readString(int length) throws IOException {
+            ensure(length);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Map the next region if the current one has less than the bytes needed
+         *
+         * @param bytes the bytes needed
+         * @throws IOException if the file ends before them
+         */
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            long position = base + buffer.position();
+            if (bytes < 0 || position + bytes > limit) {
+                throw new IOException("Snapshot ends in the middle of an entity");
+            }
+            map(position);
+        }
+
+        private void map(long position) throws IOException {
+            base = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION, limit - position));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.neu.db;
+
+import org.neu.protocol.MessageCodec;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compress the entities of the database in chunks, a chunk is decoded entity by entity
+ * so it is never held as a map in memory
+ */
+public final class SnapshotCodec {
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * Compress entities
+     *
+     * @param entities the entities
+     * @return the compressed entities
+     * @throws IOException if the entities cannot be compressed
+     */
+    public static byte[] encode(List<Map.Entry<String, String>> entities) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(entities.size());
+            for (Map.Entry<String, String> entity : entities) {
+                MessageCodec.writeString(out, entity.getKey());
+                MessageCodec.writeString(out, entity.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decompress entities and pass each one to the consumer as soon as it is decoded
+     *
+     * @param data     the compressed entities
+     * @param consumer consumer of each key and value
+     * @return the number of entities
+     * @throws IOException if the data is corrupted
+     */
+    public static int decode(byte[] data, BiConsumer<String, String> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = MessageCodec.readString(in);
+                consumer.accept(key, MessageCodec.readString(in));
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package org.neu.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.protocol.Message;
+import org.neu.protocol.MessageCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log, a server records its prepare votes and the commit and abort decisions,
+ * the coordinator records its commit decisions and when they are acknowledged.
+ * Each record is framed as [length][crc32][kind][message], so a torn record at the tail is detected and dropped.
+ */
+@Slf4j
+public class WriteAheadLog implements AutoCloseable {
+
+    // record kinds
+    public static final byte PREPARE = 1;
+    public static final byte COMMIT = 2;
+    public static final byte ABORT = 3;
+    // a decision acknowledged by every server, written by the coordinator
+    public static final byte END = 4;
+
+    // path of the log file
+    private final Path file;
+
+    // the log file, replaced when the log is rewritten
+    private volatile FileChannel channel;
+
+    // when the appended records are flushed to the disk
+    private final Durability durability;
+
+    // background flusher in async mode
+    private final ScheduledExecutorService flusher;
+
+    // guard of the group flush
+    private final Object flushLock = new Object();
+
+    // number of records appended, guarded by this
+    private long appended;
+
+    // number of records known to be on the disk, guarded by the flush lock
+    private long flushed;
+
+    // whether a leader is flushing, guarded by the flush lock
+    private boolean flushing;
+
+    // true if the log file did not exist before it was opened
+    private final boolean created;
+
+    public WriteAheadLog(Path file, Durability durability, long asyncInterval) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.file = file;
+        this.created = !Files.exists(file);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.durability = durability;
+        if (durability == Durability.ASYNC) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor();
+            this.flusher.scheduleWithFixedDelay(() -> {
+                try {
+                    groupFlush(currentAppended());
+                } catch (IOException e) {
+                    log.error("Failed in flushing the write-ahead log");
+                }
+            }, asyncInterval, asyncInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Read the log from the beginning, apply the committed messages to the database in order
+     * and drop a torn record at the tail, must be called before appending
+     *
+     * @param db the database
+     * @return the messages prepared without a decision, in the order they were prepared
+     * @throws IOException error in reading the log
+     */
+    public List<Message> replay(DB db) throws IOException {
+        Map<UUID, Message> inDoubt = new LinkedHashMap<>();
+        int records = read((kind, message) -> {
+            if (kind == PREPARE) {
+                inDoubt.put(message.getMessageId(), message);
+            } else {
+                inDoubt.remove(message.getMessageId());
+                if (kind == COMMIT) {
+                    db.writeAll(message.getChanges(), message.getLsn());
+                    db.advanceLsn(message.getLsn());
+                }
+            }
+        });
+        log.info("Replayed " + records + " records from the write-ahead log, " + inDoubt.size() + " in doubt");
+        return new ArrayList<>(inDoubt.values());
+    }
+
+    /**
+     * Read every record from the beginning in order and drop a torn record at the tail,
+     * must be called before appending
+     *
+     * @param handler handle each record with its kind and message
+     * @return the number of records read
+     * @throws IOException error in reading the log
+     */
+    public synchronized int read(BiConsumer<Byte, Message> handler) throws IOException {
+        int[] records = new int[1];
+        long valid = scan(channel, Long.MAX_VALUE, (kind, message) -> {
+            handler.accept(kind, message);
+            records[0]++;
+        });
+        // cut the torn record and continue appending after the last valid record
+        channel.truncate(valid);
+        channel.position(valid);
+        return records[0];
+    }
+
+    /**
+     * Read the records from the beginning of a log file up to the limit, stop at a torn record
+     *
+     * @param in      the log file
+     * @param limit   the position to stop at
+     * @param handler handle each record with its kind and message
+     * @return the position after the last valid record
+     * @throws IOException error in reading the log
+     */
+    private static long scan(FileChannel in, long limit, BiConsumer<Byte, Message> handler) throws IOException {
+        long valid = 0;
+        in.position(0);
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+        try {
+            while (valid < limit) {
+                int length = stream.readInt();
+                long crc = stream.readInt() & 0xFFFFFFFFL;
+                if (length <= 0 || length > in.size()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                stream.readFully(body);
+                CRC32 checksum = new CRC32();
+                checksum.update(body, 0, body.length);
+                if (checksum.getValue() != crc) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte kind = record.readByte();
+                handler.accept(kind, MessageCodec.read(record));
+                valid += 8 + length;
+            }
+        } catch (EOFException e) {
+            // reach the end of the log or a torn record
+        }
+        return valid;
+    }
+
+    /**
+     * Check if the log is new, i.e. nothing was logged to this file by an earlier run
+     *
+     * @return true if the log file was created when the log was opened
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Get the position the next record is appended at
+     *
+     * @return the position in bytes
+     * @throws IOException error in reading the position
+     */
+    public synchronized long position() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * Drop the records before a position once the database state they lead to is saved elsewhere,
+     * a prepare before the position without a decision before it is kept. The records before the position
+     * are read without blocking appending, only the records after it are copied while appending is blocked.
+     *
+     * @param position a position returned by position()
+     * @return the size of the log after the truncation
+     * @throws IOException error in writing the log
+     */
+    public long truncate(long position) throws IOException {
+        Map<UUID, Message> inDoubt = new LinkedHashMap<>();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            scan(in, position, (kind, message) -> {
+                if (kind == PREPARE) {
+                    inDoubt.put(message.getMessageId(), message);
+                } else {
+                    inDoubt.remove(message.getMessageId());
+                }
+            });
+        }
+        return replace((out) -> {
+            for (Message message : inDoubt.values()) {
+                ByteBuffer record = encode(PREPARE, message);
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            long size = channel.size();
+            for (long copied = position; copied < size; ) {
+                copied += channel.transferTo(copied, size - copied, out);
+            }
+        });
+    }
+
+    /**
+     * Replace the whole log with the given records, used to truncate the records no longer needed.
+     * The records are taken while appending is blocked, so a record appended after them is kept.
+     * The new log is written aside and moved over the old one, so a crash keeps one of them intact.
+     *
+     * @param records supply the kind and message of each record to be kept
+     * @throws IOException error in writing the log
+     */
+    public void rewrite(Supplier<List<Map.Entry<Byte, Message>>> records) throws IOException {
+        replace((out) -> {
+            for (Map.Entry<Byte, Message> entry : records.get()) {
+                ByteBuffer record = encode(entry.getKey(), entry.getValue());
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write a new log aside while appending is blocked and move it over the old one
+     *
+     * @param writer write the new log
+     * @return the size of the new log
+     * @throws IOException error in writing the log
+     */
+    private long replace(LogWriter writer) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        // take the flush leadership so no flush runs on the replaced channel
+        acquireFlush();
+        // number of records in the rewritten log, taken before appending is unblocked, -1 if the log is not replaced
+        long covered = -1;
+        try {
+            synchronized (this) {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writer.write(out);
+                    out.force(true);
+                }
+                channel.close();
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                covered = appended;
+                return channel.size();
+            }
+        } finally {
+            synchronized (flushLock) {
+                flushing = false;
+                // the rewritten log is all on the disk, a record appended after it is not
+                flushed = Math.max(flushed, covered);
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Append a record, it is not guaranteed to be on the disk before sync is called
+     *
+     * @param kind    PREPARE, COMMIT or ABORT
+     * @param message the message of the record
+     * @throws IOException error in writing the log
+     */
+    public void append(byte kind, Message message) throws IOException {
+        ByteBuffer record = encode(kind, message);
+        synchronized (this) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            appended++;
+        }
+    }
+
+    /**
+     * Wait until every record appended before this call is on the disk, depending on the durability
+     *
+     * @throws IOException error in flushing the log
+     */
+    public void sync() throws IOException {
+        switch (durability) {
+            case PER_COMMIT:
+                // every caller pays its own flush
+                synchronized (this) {
+                    channel.force(false);
+                }
+                break;
+            case GROUP:
+                groupFlush(currentAppended());
+                break;
+            case ASYNC:
+                // flushed by the background flusher
+                break;
+        }
+    }
+
+    /**
+     * Flush the disk until the target record is on it, one caller leads a flush covering every record
+     * appended so far while the others wait for it, so concurrent commits share one disk flush
+     *
+     * @param target the number of records to be on the disk
+     * @throws IOException error in flushing the log
+     */
+    private void groupFlush(long target) throws IOException {
+        while (true) {
+            synchronized (flushLock) {
+                if (!awaitFlush(target)) {
+                    return;
+                }
+                flushing = true;
+            }
+            long upTo = currentAppended();
+            boolean done = false;
+            try {
+                channel.force(false);
+                done = true;
+            } finally {
+                synchronized (flushLock) {
+                    flushing = false;
+                    if (done) {
+                        flushed = Math.max(flushed, upTo);
+                    }
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the flush leadership regardless of what is flushed
+     *
+     * @throws IOException if interrupted in waiting
+     */
+    private void acquireFlush() throws IOException {
+        synchronized (flushLock) {
+            awaitFlush(Long.MAX_VALUE);
+            flushing = true;
+        }
+    }
+
+    /**
+     * Wait while another caller leads a flush not yet covering the target, must hold the flush lock
+     *
+     * @param target the number of records to be on the disk
+     * @return true if the target is still not on the disk and no flush is running
+     * @throws IOException if interrupted in waiting
+     */
+    private boolean awaitFlush(long target) throws IOException {
+        while (flushing && flushed < target) {
+            try {
+                flushLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted in waiting for the log flush");
+            }
+        }
+        return flushed < target;
+    }
+
+    /**
+     * Get the number of records appended
+     *
+     * @return the number of records
+     */
+    private synchronized long currentAppended() {
+        return appended;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Write the content of a new log
+     */
+    @FunctionalInterface
+    private interface LogWriter {
+        void write(FileChannel out) throws IOException;
+    }
+
+    /**
+     * Frame a record as [length][crc32][kind][message]
+     *
+     * @param kind    kind of the record
+     * @param message message of the record
+     * @return the framed record ready to be written
+     * @throws IOException error in encoding
+     */
+    private static ByteBuffer encode(byte kind, Message message) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(kind);
+        MessageCodec.write(out, message);
+        byte[] body = buffer.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(body, 0, body.length);
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(body.length).putInt((int) checksum.getValue()).put(body).flip();
+        return record;
+    }
+}
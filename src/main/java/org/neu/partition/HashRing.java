@@ -0,0 +1,225 @@
+package org.neu.partition;
+
+import org.neu.protocol.Message;
+import org.neu.protocol.Operation;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring of the servers, each server is placed at many points of the ring and a key belongs to
+ * the first servers met clockwise from the hash of the key. Adding a server to n servers moves about 1/(n+1)
+ * of the keys. A replication factor of 0, or not less than the number of servers, gives every key to every server.
+ * The ring is immutable, a change of the servers builds a new one.
+ */
+public final class HashRing implements Serializable {
+
+    private static final long serialVersionUID = 1234571L;
+
+    // the digest of each thread, creating one per hash is slower than the hash
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    });
+
+    // the servers in order
+    private final List<String> members;
+
+    // number of servers owning each key, 0 for all
+    private final int replicas;
+
+    // number of points of each server on the ring
+    private final int virtualNodes;
+
+    // the server of each point by the hash of the point
+    private final transient NavigableMap<Long, String> points;
+
+    public HashRing(Collection<String> members, int replicas, int virtualNodes) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        this.replicas = replicas;
+        this.virtualNodes = virtualNodes;
+        this.points = new TreeMap<>();
+        for (String member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * Create a ring with one more server
+     *
+     * @param member id of the server
+     * @return the new ring, or this ring if the server is on it
+     */
+    public HashRing with(String member) {
+        if (members.contains(member)) {
+            return this;
+        }
+        List<String> grown = new ArrayList<>(members);
+        grown.add(member);
+        return new HashRing(grown, replicas, virtualNodes);
+    }
+
+    /**
+     * Determine if every server owns every key
+     *
+     * @return true if the keys are not partitioned
+     */
+    public boolean isFull() {
+        return replicas <= 0 || replicas >= members.size();
+    }
+
+    /**
+     * Get the servers owning a key, the first one is the primary owner
+     *
+     * @param key the key
+     * @return ids of the servers
+     */
+    public List<String> owners(String key) {
+        if (isFull()) {
+            return members;
+        }
+        Set<String> owners = new LinkedHashSet<>();
+        // walk clockwise from the key and wrap around once
+        for (String member : points.tailMap(hash(key)).values()) {
+            if (owners.add(member) && owners.size() == replicas) {
+                return new ArrayList<>(owners);
+            }
+        }
+        for (String member : points.values()) {
+            if (owners.add(member) && owners.size() == replicas) {
+                break;
+            }
+        }
+        return new ArrayList<>(owners);
+    }
+
+    /**
+     * Get the servers owning any of the keys
+     *
+     * @param keys the keys
+     * @return ids of the servers
+     */
+    public Set<String> owners(Collection<String> keys) {
+        if (isFull()) {
+            return new LinkedHashSet<>(members);
+        }
+        Set<String> owners = new LinkedHashSet<>();
+        for (String key : keys) {
+            owners.addAll(owners(key));
+        }
+        return owners;
+    }
+
+    /**
+     * Determine if a server owns a key
+     *
+     * @param member id of the server
+     * @param key    the key
+     * @return true if it owns
+     */
+    public boolean owns(String member, String key) {
+        return isFull() ? members.contains(member) : owners(key).contains(member);
+    }
+
+    /**
+     * Get the part of a message a server owns, the operations on the keys of other servers are left out
+     *
+     * @param message the message
+     * @param member  id of the server
+     * @return the message itself if the server owns all of its keys, null if it owns none of them,
+     * otherwise a part of the message marked as such
+     */
+    public Message part(Message message, String member) {
+        if (isFull()) {
+            return members.contains(member) ? message : null;
+        }
+        List<Operation> operations = message.getOperations();
+        List<Operation> owned = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            if (owns(member, operation.getKey())) {
+                owned.add(operation);
+            }
+        }
+        if (owned.size() == operations.size()) {
+            return message;
+        }
+        if (owned.isEmpty()) {
+            return null;
+        }
+        Message part = Message.transaction(message.getMessageId(), owned, message.getClientId());
+        part.setKey(message.getRoutingKey());
+        part.setLsn(message.getLsn());
+        part.setPart(true);
+        return part;
+    }
+
+    /**
+     * Split the keys by the servers owning them
+     *
+     * @param keys the keys
+     * @return the keys of each group of owners
+     */
+    public Map<List<String>, List<String>> group(Collection<String> keys) {
+        Map<List<String>, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(owners(key), (k) -> new ArrayList<>()).add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Get the servers on the ring
+     *
+     * @return ids of the servers in order
+     */
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the replication factor
+     *
+     * @return number of servers owning each key, 0 for all
+     */
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Build the points again after deserialization, only the servers and the factors are sent
+     *
+     * @return the ring
+     */
+    private Object readResolve() {
+        return new HashRing(members, replicas, virtualNodes);
+    }
+
+    /**
+     * Hash a string to a point of the ring
+     *
+     * @param value the string
+     * @return the point
+     */
+    static long hash(String value) {
+        return ByteBuffer.wrap(DIGEST.get().digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+}
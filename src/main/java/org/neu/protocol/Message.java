@@ -2,19 +2,31 @@ package org.neu.protocol;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.ToString;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
 /**
- * The message class use for data transfer in two-phase transaction
+ * The message class use for data transfer in two-phase transaction,
+ * it is written in the compact binary layout of MessageCodec instead of the default serialization.
+ * A message of a transaction carries several operations, the participants vote on all of them together
+ * and apply them at once.
  */
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
-@ToString
-public class Message implements Serializable {
+@ToString(doNotUseGetters = true)
+public class Message implements Externalizable {
 
     private static final long serialVersionUID = 1234567L;
 
@@ -23,7 +35,7 @@ public class Message implements Serializable {
     // operation type
     private Type type;
 
-    // key
+    // key, for a transaction the key it is routed by, null until it is split
     private String key;
 
     // value
@@ -32,6 +44,92 @@ public class Message implements Serializable {
     // client id
     private UUID clientId;
 
+    // log sequence number assigned by the coordinator when the message is committed, 0 if not committed yet
+    private long lsn;
+
+    // the operations of a transaction in order, null for a single put or delete
+    private List<Operation> operations;
+
+    // true for the part of a transaction a server owns, the client only gets the outcome of the whole transaction
+    private boolean part;
+
+    public Message(UUID messageId, Type type, String key, String value, UUID clientId) {
+        this(messageId, type, key, value, clientId, 0);
+    }
+
+    public Message(UUID messageId, Type type, String key, String value, UUID clientId, long lsn) {
+        this(messageId, type, key, value, clientId, lsn, null);
+    }
+
+    public Message(UUID messageId, Type type, String key, String value, UUID clientId, long lsn, List<Operation> operations) {
+        this(messageId, type, key, value, clientId, lsn, operations, false);
+    }
+
+    /**
+     * Create the message of a transaction
+     *
+     * @param messageId id of the message
+     * @param operations the puts and deletes of the transaction in order
+     * @param clientId  client id
+     * @return the message
+     */
+    public static Message transaction(UUID messageId, List<Operation> operations, UUID clientId) {
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("A transaction needs at least one operation");
+        }
+        for (Operation operation : operations) {
+            if (operation.getType() == Type.TRANSACTION) {
+                throw new IllegalArgumentException("A transaction cannot be nested: " + operation);
+            }
+        }
+        return new Message(messageId, Type.TRANSACTION, null, null, clientId, 0, operations);
+    }
+
+    /**
+     * Get the operations of the message, a single put or delete is one operation
+     *
+     * @return the operations in order
+     */
+    public List<Operation> getOperations() {
+        if (type == Type.TRANSACTION) {
+            return operations;
+        }
+        return Collections.singletonList(new Operation(type, key, value));
+    }
+
+    /**
+     * Get the key the message is routed by, the first key of a transaction.
+     * A part of a transaction keeps the key of the whole transaction.
+     *
+     * @return the key
+     */
+    public String getRoutingKey() {
+        return key != null ? key : operations.get(0).getKey();
+    }
+
+    /**
+     * Get the effect of the operations on each key, the last operation of a key wins
+     *
+     * @return the new value of each key in the order of the operations, null if the key is deleted
+     */
+    public Map<String, String> getChanges() {
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (Operation operation : getOperations()) {
+            changes.put(operation.getKey(), operation.getType() == Type.PUT ? operation.getValue() : null);
+        }
+        return changes;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        MessageCodec.write(out, this);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        MessageCodec.read(in, this);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
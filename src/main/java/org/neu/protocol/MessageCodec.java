@@ -0,0 +1,141 @@
+package org.neu.protocol;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary layout of a message shared by the wire and the write-ahead log:
+ * [message id as two longs][type as a byte][key][value][client id flag][client id as two longs][lsn],
+ * followed by [part flag][count][type as a byte][key][value]... of the operations if the message is a transaction.
+ * A string is length-prefixed UTF-8 with -1 for null
+ */
+public final class MessageCodec {
+
+    // the operation types by ordinal
+    private static final Type[] TYPES = Type.values();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Write a message in binary
+     *
+     * @param out     the output
+     * @param message the message
+     * @throws IOException error in writing
+     */
+    public static void write(DataOutput out, Message message) throws IOException {
+        writeUuid(out, message.getMessageId());
+        out.writeByte(message.getType().ordinal());
+        writeString(out, message.getKey());
+        writeString(out, message.getValue());
+        out.writeBoolean(message.getClientId() != null);
+        if (message.getClientId() != null) {
+            writeUuid(out, message.getClientId());
+        }
+        out.writeLong(message.getLsn());
+        if (message.getType() == Type.TRANSACTION) {
+            List<Operation> operations = message.getOperations();
+            out.writeBoolean(message.isPart());
+            out.writeInt(operations.size());
+            for (Operation operation : operations) {
+                out.writeByte(operation.getType().ordinal());
+                writeString(out, operation.getKey());
+                writeString(out, operation.getValue());
+            }
+        }
+    }
+
+    /**
+     * Read a message in binary
+     *
+     * @param in the input
+     * @return the message
+     * @throws IOException error in reading
+     */
+    public static Message read(DataInput in) throws IOException {
+        Message message = new Message();
+        read(in, message);
+        return message;
+    }
+
+    /**
+     * Read a message in binary into an existing message
+     *
+     * @param in      the input
+     * @param message the message to be filled
+     * @throws IOException error in reading
+     */
+    static void read(DataInput in, Message message) throws IOException {
+        message.setMessageId(readUuid(in));
+        message.setType(TYPES[in.readByte()]);
+        message.setKey(readString(in));
+        message.setValue(readString(in));
+        message.setClientId(in.readBoolean() ? readUuid(in) : null);
+        message.setLsn(in.readLong());
+        if (message.getType() == Type.TRANSACTION) {
+            message.setPart(in.readBoolean());
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid number of operations: " + count);
+            }
+            List<Operation> operations = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                Type type = TYPES[in.readByte()];
+                if (type == Type.TRANSACTION) {
+                    throw new IOException("A transaction cannot be nested");
+                }
+                operations.add(new Operation(type, readString(in), readString(in)));
+            }
+            message.setOperations(operations);
+        }
+    }
+
+    /**
+     * Write a nullable string as length-prefixed UTF-8, -1 for null
+     *
+     * @param out   the output
+     * @param value the string
+     * @throws IOException error in writing
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a nullable length-prefixed UTF-8 string
+     *
+     * @param in the input
+     * @return the string
+     * @throws IOException error in reading
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeUuid(DataOutput out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
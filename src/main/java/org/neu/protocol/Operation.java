@@ -0,0 +1,44 @@
+package org.neu.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A put or delete of one key inside a transaction message
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class Operation {
+
+    // operation type, put or delete
+    private final Type type;
+
+    // key
+    private final String key;
+
+    // value, null for delete
+    private final String value;
+
+    /**
+     * Create a put of a key
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the operation
+     */
+    public static Operation put(String key, String value) {
+        return new Operation(Type.PUT, key, value);
+    }
+
+    /**
+     * Create a delete of a key
+     *
+     * @param key the key
+     * @return the operation
+     */
+    public static Operation delete(String key) {
+        return new Operation(Type.DELETE, key, null);
+    }
+}
@@ -0,0 +1,50 @@
+package org.neu.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * The outcome of a write request
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class Result implements Serializable {
+
+    private static final long serialVersionUID = 1234569L;
+
+    // id of the message of the request
+    private final UUID messageId;
+
+    // id of the server that answered
+    private final String serverId;
+
+    // true if the write is committed, false if it is aborted
+    private final boolean committed;
+
+    // the response to the client
+    private final String response;
+
+    /**
+     * Describe the outcome of a message to the client
+     *
+     * @param message   the message
+     * @param committed true if the message is committed
+     * @param current   the value of the key of an aborted PUT
+     * @return the response to the client
+     */
+    public static String describe(Message message, boolean committed, String current) {
+        if (message.getType().equals(Type.TRANSACTION)) {
+            return "transaction of " + message.getOperations().size() + " operations " + (committed ? "has been committed" : "is rejected");
+        }
+        if (message.getType().equals(Type.PUT)) {
+            return committed ? "key: " + message.getKey() + " value: " + message.getValue() + " has been stored"
+                    : "key: " + message.getKey() + " value: " + current + " is immutable";
+        }
+        return "key: " + message.getKey() + (committed ? " has been deleted" : " is not found");
+    }
+}
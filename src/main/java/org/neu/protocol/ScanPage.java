@@ -0,0 +1,34 @@
+package org.neu.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+/**
+ * A page of the entities of a scan in the order of their keys
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class ScanPage implements Serializable {
+
+    private static final long serialVersionUID = 1234570L;
+
+    // the entities of the page in order
+    private final LinkedHashMap<String, String> entities;
+
+    // the continuation token to get the next page, null if the scan is complete
+    private final String next;
+
+    /**
+     * Determine if there are more pages of the scan
+     *
+     * @return true if there are, otherwise false
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+}
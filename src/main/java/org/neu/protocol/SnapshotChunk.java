@@ -0,0 +1,40 @@
+package org.neu.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A bounded part of the data sent to synchronize a server, the entities are compressed
+ */
+@Getter
+@AllArgsConstructor
+@ToString(exclude = "data")
+public class SnapshotChunk implements Serializable {
+
+    private static final long serialVersionUID = 1234568L;
+
+    // id of the synchronization the chunk belongs to
+    private final UUID syncId;
+
+    // number of entities sent in the previous chunks of the synchronization
+    private final long offset;
+
+    // number of entities in the chunk
+    private final int count;
+
+    // the compressed entities
+    private final byte[] data;
+
+    // true if it is the last chunk of the synchronization
+    private final boolean last;
+
+    // log sequence number of the latest commit when the synchronization started
+    private final long lsn;
+
+    // true if the chunks hold every key the server owns, so a key not sent is deleted on the server
+    private final boolean whole;
+}
@@ -1,8 +1,8 @@
 package org.neu.protocol;
 
 /**
- * Operation type
+ * Operation type, a transaction carries a list of puts and deletes applied together
  */
 public enum Type {
-    PUT, DELETE
+    PUT, DELETE, TRANSACTION
 }
@@ -0,0 +1,223 @@
+package org.neu.server;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.api.Client;
+import org.neu.protocol.Message;
+import org.neu.protocol.Result;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Send the result of each write request back to the client that sent it. The client of each pending request
+ * is kept by message id, a waiting write gets its result through a future and a client with a registry
+ * gets it by a callback. The client stubs are cached so a callback is a single remote call.
+ * The cache holds at most the capacity of stubs, the least recently used one is dropped first
+ * and a stub not used for the idle timeout is dropped too.
+ */
+@Slf4j
+public class ClientResponder {
+
+    // the client of each request waiting for its result by message id
+    private final Map<UUID, Pending> pending;
+
+    // the client stubs by address in the order of use, guarded by itself
+    private final LinkedHashMap<String, CachedStub> stubs;
+
+    // time in milliseconds a stub is kept without use
+    private final long idleTimeout;
+
+    // time in milliseconds a request waits for its result
+    private final long pendingTimeout;
+
+    public ClientResponder(int capacity, long idleTimeout, long pendingTimeout) {
+        this.pending = new ConcurrentHashMap<>();
+        this.stubs = new LinkedHashMap<String, CachedStub>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStub> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.idleTimeout = idleTimeout;
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    /**
+     * Remember the client of a request
+     *
+     * @param message  the message of the request
+     * @param hostname hostname of the client
+     * @param port     port of the client
+     */
+    public void expect(Message message, String hostname, int port) {
+        pending.put(message.getMessageId(), new Pending(hostname, port, null, System.currentTimeMillis()));
+    }
+
+    /**
+     * Wait for the result of a request
+     *
+     * @param message the message of the request
+     * @return the future completed with the result
+     */
+    public CompletableFuture<Result> await(Message message) {
+        CompletableFuture<Result> outcome = new CompletableFuture<>();
+        pending.put(message.getMessageId(), new Pending(null, 0, outcome, System.currentTimeMillis()));
+        return outcome;
+    }
+
+    /**
+     * Stop waiting for the result of a request
+     *
+     * @param message the message of the request
+     */
+    public void forget(Message message) {
+        pending.remove(message.getMessageId());
+    }
+
+    /**
+     * Send the result to the client of the request, nothing is sent if the request came from another server.
+     * Nothing is sent for the part of a transaction this server owns either, the coordinator delivers the outcome.
+     *
+     * @param result  the result of the request
+     * @param message the message of the request
+     */
+    public void respond(Result result, Message message) {
+        if (message.isPart()) {
+            return;
+        }
+        Pending client = pending.get(message.getMessageId());
+        if (client == null || !pending.remove(message.getMessageId(), client)) {
+            return;
+        }
+        if (client.outcome != null) {
+            client.outcome.complete(result);
+            return;
+        }
+        String serverId = result.getServerId();
+        String response = result.getResponse();
+        String address = client.hostname + ":" + client.port;
+        try {
+            try {
+                stub(client).setResponse(serverId, response, message);
+            } catch (RemoteException e) {
+                // the client may have restarted with a new stub, look it up again once
+                invalidate(address);
+                stub(client).setResponse(serverId, response, message);
+            }
+            log.info("Response sent: " + response);
+        } catch (NotBoundException | MalformedURLException | UnknownHostException | RemoteException e) {
+            invalidate(address);
+            // log if the client lost connection
+            log.error("Client with id: " + message.getClientId() + " lost connection in sending response of the result: " + response);
+        }
+    }
+
+    /**
+     * Drop the idle stubs and the requests waiting too long for their results
+     */
+    public void purge() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf((client) -> now - client.time > pendingTimeout);
+        synchronized (stubs) {
+            Iterator<CachedStub> iterator = stubs.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().lastUsed > idleTimeout) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cached stub of a client or look it up
+     *
+     * @param client the client
+     * @return the stub
+     */
+    private Client stub(Pending client) throws NotBoundException, MalformedURLException, UnknownHostException, RemoteException {
+        String address = client.hostname + ":" + client.port;
+        long now = System.currentTimeMillis();
+        synchronized (stubs) {
+            CachedStub cached = stubs.get(address);
+            if (cached != null) {
+                cached.lastUsed = now;
+                return cached.stub;
+            }
+        }
+        // look up without holding the cache, two lookups of the same client at once are harmless
+        Client stub = (Client) Naming.lookup("rmi://" + InetAddress.getByName(client.hostname).getHostAddress() + ":" + client.port + "/Client");
+        synchronized (stubs) {
+            stubs.put(address, new CachedStub(stub, now));
+        }
+        return stub;
+    }
+
+    private void invalidate(String address) {
+        synchronized (stubs) {
+            stubs.remove(address);
+        }
+    }
+
+    /**
+     * Get the number of cached stubs
+     *
+     * @return the number of cached stubs
+     */
+    public int size() {
+        synchronized (stubs) {
+            return stubs.size();
+        }
+    }
+
+    /**
+     * The client of a request
+     */
+    private static class Pending {
+
+        // hostname of the client
+        private final String hostname;
+
+        // port of the client
+        private final int port;
+
+        // completed with the result if the request waits for it, null if the client gets a callback
+        private final CompletableFuture<Result> outcome;
+
+        // the time the request was received
+        private final long time;
+
+        private Pending(String hostname, int port, CompletableFuture<Result> outcome, long time) {
+            this.hostname = hostname;
+            this.port = port;
+            this.outcome = outcome;
+            this.time = time;
+        }
+    }
+
+    /**
+     * A cached client stub
+     */
+    private static class CachedStub {
+
+        // the stub
+        private final Client stub;
+
+        // the time the stub was last used
+        private long lastUsed;
+
+        private CachedStub(Client stub, long lastUsed) {
+            this.stub = stub;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
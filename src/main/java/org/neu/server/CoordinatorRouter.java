@@ -0,0 +1,254 @@
+package org.neu.server;
+
+import lombok.extern.slf4j.Slf4j;
+import org.neu.api.Transaction;
+import org.neu.db.DB;
+import org.neu.partition.HashRing;
+import org.neu.protocol.Message;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+
+/**
+ * The coordinators seen by a server as one. The keys are split into slices on a hash ring of the coordinators,
+ * a message and every vote and ack of it go to the coordinator owning its keys, which keeps the backup
+ * and the recovery of the message. A key is only ever committed by the owner of its slice, so the log sequence
+ * numbers of a key are of one coordinator and a transaction spanning slices is rejected.
+ * The registrations and the subscriptions go to every coordinator, each with the latest commit of its own slice.
+ */
+@Slf4j
+public class CoordinatorRouter implements Transaction {
+
+    // the coordinators by their address as configured
+    private final Map<String, Transaction> coordinators;
+
+    // the slice of the keys of each coordinator
+    private final HashRing slices;
+
+    // sends the parts of a batch to several coordinators at once
+    private final ExecutorService caller = Executors.newCachedThreadPool();
+
+    public CoordinatorRouter(Map<String, Transaction> coordinators, int virtualNodes) {
+        this.coordinators = Collections.unmodifiableMap(new LinkedHashMap<>(coordinators));
+        this.slices = new HashRing(coordinators.keySet(), 1, virtualNodes);
+    }
+
+    /**
+     * Get the coordinator owning a key
+     *
+     * @param key the key
+     * @return the coordinator
+     */
+    public Transaction route(String key) {
+        return coordinators.get(slices.owners(key).get(0));
+    }
+
+    /**
+     * Get the address of the coordinator owning a key
+     *
+     * @param key the key
+     * @return the address as configured
+     */
+    private String owner(String key) {
+        return slices.owners(key).get(0);
+    }
+
+    /**
+     * Make sure the keys of a new message are in the slice of one coordinator
+     *
+     * @param message the message
+     * @throws RemoteException if the keys span slices
+     */
+    private void checkSlice(Message message) throws RemoteException {
+        if (coordinators.size() == 1) {
+            return;
+        }
+        String first = owner(message.getRoutingKey());
+        for (String key : message.getChanges().keySet()) {
+            String owner = owner(key);
+            if (!owner.equals(first)) {
+                throw new RemoteException("The message: " + message.getMessageId() + " spans the slices of the coordinators at "
+                        + first + " and " + owner + ", a transaction must keep to the keys of one coordinator");
+            }
+        }
+    }
+
+    /**
+     * Get the coordinator of a message
+     *
+     * @param message the message
+     * @return the coordinator
+     */
+    private Transaction route(Message message) {
+        return coordinators.size() == 1 ? coordinators.values().iterator().next() : route(message.getRoutingKey());
+    }
+
+    @Override
+    public void requirePrepare(String serverId, Message message) throws RemoteException {
+        checkSlice(message);
+        route(message).requirePrepare(serverId, message);
+    }
+
+    @Override
+    public void requirePrepareBatch(String serverId, List<Message> messages) throws RemoteException {
+        for (Message message : messages) {
+            checkSlice(message);
+        }
+        if (coordinators.size() == 1) {
+            route(messages.get(0)).requirePrepareBatch(serverId, messages);
+            return;
+        }
+        Map<Transaction, List<Message>> batches = new LinkedHashMap<>();
+        for (Message message : messages) {
+            batches.computeIfAbsent(route(message), (k) -> new ArrayList<>()).add(message);
+        }
+        // each coordinator runs the round of its part, the rounds run at the same time
+        List<CompletableFuture<Void>> rounds = new ArrayList<>(batches.size());
+        batches.forEach((coordinator, batch) -> rounds.add(CompletableFuture.runAsync(() -> {
+            try {
+                coordinator.requirePrepareBatch(serverId, batch);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, caller)));
+        try {
+            CompletableFuture.allOf(rounds.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RemoteException ? (RemoteException) e.getCause()
+                    : new RemoteException("Failed in starting the transaction of a batch of " + messages.size() + " messages", e.getCause());
+        }
+    }
+
+    @Override
+    public void accept(String serverId, Message message) throws RemoteException {
+        route(message).accept(serverId, message);
+    }
+
+    @Override
+    public void reject(String serverId, Message message) throws RemoteException {
+        route(message).reject(serverId, message);
+    }
+
+    @Override
+    public void ackCommit(String serverId, Message message) throws RemoteException {
+        route(message).ackCommit(serverId, message);
+    }
+
+    @Override
+    public void ackAbort(String serverId, Message message) throws RemoteException {
+        route(message).ackAbort(serverId, message);
+    }
+
+    @Override
+    public void register(String serverId, String ip, int port, long lastLsn, int count) throws RemoteException {
+        register(serverId, ip, port, (address) -> lastLsn);
+    }
+
+    /**
+     * Register the server at every coordinator with the latest commit of the slice of each one,
+     * the log sequence numbers of the coordinators are not comparable, so each one catches up the server from its own
+     *
+     * @param serverId id of the server
+     * @param ip       the hostname of the server
+     * @param port     the port of the server
+     * @param db       the database of the server
+     * @throws RemoteException if a coordinator is unreachable
+     */
+    public void register(String serverId, String ip, int port, DB db) throws RemoteException {
+        register(serverId, ip, port, (address) -> coordinators.size() == 1 ? db.getLsn()
+                : db.getLsn((key) -> owner(key).equals(address)));
+    }
+
+    /**
+     * Register the server at every coordinator
+     *
+     * @param serverId id of the server
+     * @param ip       the hostname of the server
+     * @param port     the port of the server
+     * @param lastLsn  the latest commit applied by the server of the coordinator at an address
+     * @throws RemoteException if a coordinator is unreachable
+     */
+    private void register(String serverId, String ip, int port, ToLongFunction<String> lastLsn) throws RemoteException {
+        // every coordinator sends the prepares of its slice to this server, so it registers everywhere
+        RemoteException failure = null;
+        for (Map.Entry<String, Transaction> entry : coordinators.entrySet()) {
+            try {
+                entry.getValue().register(serverId, ip, port, lastLsn.applyAsLong(entry.getKey()), coordinators.size());
+            } catch (RemoteException e) {
+                log.error("Coordinator at " + entry.getKey() + " is unreachable in registering the server with id: " + serverId);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public Map<UUID, Boolean> resolve(String serverId, List<Message> messages) throws RemoteException {
+        // each coordinator decided the messages of its slice
+        Map<Transaction, List<Message>> groups = new LinkedHashMap<>();
+        for (Message message : messages) {
+            groups.computeIfAbsent(route(message), (k) -> new ArrayList<>()).add(message);
+        }
+        Map<UUID, Boolean> outcomes = new HashMap<>();
+        for (Map.Entry<Transaction, List<Message>> group : groups.entrySet()) {
+            outcomes.putAll(group.getKey().resolve(serverId, group.getValue()));
+        }
+        return outcomes;
+    }
+
+    @Override
+    public boolean subscribe(String hostname, int port) throws RemoteException {
+        // each coordinator pushes the invalidations of its own commits
+        boolean added = false;
+        for (Transaction coordinator : coordinators.values()) {
+            added |= coordinator.subscribe(hostname, port);
+        }
+        return added;
+    }
+
+    @Override
+    public HashRing getRing() throws RemoteException {
+        // every server registers at every coordinator, so their rings of the servers are the same
+        RemoteException failure = null;
+        for (Map.Entry<String, Transaction> entry : coordinators.entrySet()) {
+            try {
+                return entry.getValue().getRing();
+            } catch (RemoteException e) {
+                log.error("Coordinator at " + entry.getKey() + " is unreachable in getting the ring");
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() throws RemoteException {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (Transaction coordinator : coordinators.values()) {
+            coordinator.getCounters().forEach((name, value) -> counters.merge(name, value, Long::sum));
+        }
+        return counters;
+    }
+
+    /**
+     * Get the number of coordinators
+     *
+     * @return the number of coordinators
+     */
+    public int size() {
+        return coordinators.size();
+    }
+}
@@ -0,0 +1,199 @@
+package org.neu.server;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Participant side lock table, a key is locked by a transaction from its prepare until its commit or abort.
+ * A lock not yet voted on expires after the timeout, so a prepare that never votes never blocks the key forever.
+ * Once the transaction is voted for commit the lock is pinned until the decision arrives, the coordinator may
+ * commit it at any time, so no other transaction may take the key meanwhile.
+ * Conflicts are ordered by wait-die on the message ids: a transaction with a lower id than the holder waits
+ * for the lock, a higher one gives up. Every replica orders the same transactions the same way, so the lowest
+ * of the concurrent transactions on a key is never rejected for the conflict, and no cycle of waits forms.
+ * A waiter waits on the lock it waits for, so a release only wakes up the waiters of its own key.
+ */
+public class LockTable {
+
+    // the lock of each key
+    private final Map<String, Lock> locks;
+
+    // time in milliseconds a lock is held without a vote
+    private final long timeout;
+
+    public LockTable(long timeout) {
+        this.locks = new ConcurrentHashMap<>();
+        this.timeout = timeout;
+    }
+
+    /**
+     * Lock a key for a transaction, wait for the holder if the transaction has a lower id than the holder
+     *
+     * @param key   the key
+     * @param owner id of the transaction
+     * @param wait  max time in milliseconds to wait, 0 to give up right away
+     * @return true if the key is locked by the transaction, false if another transaction still holds it
+     */
+    public boolean lock(String key, UUID owner, long wait) {
+        long deadline = System.currentTimeMillis() + wait;
+        while (true) {
+            long now = System.currentTimeMillis();
+            Lock holder = acquire(key, owner, now);
+            if (holder.owner.equals(owner)) {
+                return true;
+            }
+            // die if younger than the holder, only the lower ids wait, so the waits never form a cycle
+            if (owner.compareTo(holder.owner) > 0 || now >= deadline) {
+                return false;
+            }
+            synchronized (holder) {
+                holder.waiters.incrementAndGet();
+                try {
+                    // the holder may have released the lock since it was read
+                    if (locks.get(key) == holder) {
+                        holder.wait(Math.max(1, Math.min(deadline, holder.expiry) - now));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    holder.waiters.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Try to lock a key for a transaction without waiting
+     *
+     * @param key   the key
+     * @param owner id of the transaction
+     * @return true if the key is locked by the transaction, false if another transaction holds it
+     */
+    public boolean tryLock(String key, UUID owner) {
+        return acquire(key, owner, System.currentTimeMillis()).owner.equals(owner);
+    }
+
+    /**
+     * Take the lock of a key if it is free, expired or already held by the same transaction
+     *
+     * @param key   the key
+     * @param owner id of the transaction
+     * @param now   the current time
+     * @return the lock of the key after the attempt
+     */
+    private Lock acquire(String key, UUID owner, long now) {
+        Lock[] expired = new Lock[1];
+        Lock lock = locks.compute(key, (k, current) -> {
+            if (current != null && current.owner.equals(owner)) {
+                return current;
+            }
+            if (current == null || current.expiry < now) {
+                expired[0] = current;
+                return new Lock(owner, now + timeout);
+            }
+            return current;
+        });
+        wakeUp(expired[0]);
+        return lock;
+    }
+
+    /**
+     * Keep the lock of a key held by a transaction voted for commit until it is released by the decision
+     *
+     * @param key   the key
+     * @param owner id of the transaction
+     */
+    public void pin(String key, UUID owner) {
+        locks.computeIfPresent(key, (k, current) -> {
+            if (current.owner.equals(owner)) {
+                // in place, so the waiters keep waiting on the same lock
+                current.expiry = Long.MAX_VALUE;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Release the lock of a key if it is held by the transaction
+     *
+     * @param key   the key
+     * @param owner id of the transaction
+     */
+    public void unlock(String key, UUID owner) {
+        Lock[] released = new Lock[1];
+        locks.computeIfPresent(key, (k, current) -> {
+            if (!current.owner.equals(owner)) {
+                return current;
+            }
+            released[0] = current;
+            return null;
+        });
+        wakeUp(released[0]);
+    }
+
+    /**
+     * Remove the expired locks, the pinned ones never expire
+     */
+    public void purge() {
+        long now = System.currentTimeMillis();
+        Set<Lock> expired = new HashSet<>();
+        for (String key : locks.keySet()) {
+            locks.computeIfPresent(key, (k, current) -> {
+                if (current.expiry >= now) {
+                    return current;
+                }
+                expired.add(current);
+                return null;
+            });
+        }
+        expired.forEach(this::wakeUp);
+    }
+
+    /**
+     * Wake up the transactions waiting for a released lock to try again
+     *
+     * @param lock the released lock, null if none is released
+     */
+    private void wakeUp(Lock lock) {
+        if (lock != null && lock.waiters.get() > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the number of locked keys
+     *
+     * @return the number of locked keys
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    /**
+     * A lock held by a transaction, the waiters for it wait on it
+     */
+    private static class Lock {
+
+        // id of the transaction
+        private final UUID owner;
+
+        // the time the lock expires, never once the transaction is voted for commit
+        private volatile long expiry;
+
+        // number of transactions waiting for the lock, a release only wakes them up if there is any
+        private final AtomicInteger waiters;
+
+        private Lock(UUID owner, long expiry) {
+            this.owner = owner;
+            this.expiry = expiry;
+            this.waiters = new AtomicInteger();
+        }
+    }
+}
@@ -5,16 +5,23 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.neu.api.Service;
 import org.neu.api.Transaction;
 import org.neu.db.DB;
+import org.neu.db.Durability;
+import org.neu.db.Snapshot;
+import org.neu.db.WriteAheadLog;
+import org.neu.protocol.Message;
+import org.neu.transport.Transport;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.AlreadyBoundException;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Server initializer
@@ -27,20 +34,60 @@ public class Server {
      *
      * @throws RemoteException remote exception
      */
-    public Server(String port, String coordinatorHostname, String coordinatorPort) throws RemoteException, AlreadyBoundException, NumberFormatException, MalformedURLException, NotBoundException, UnknownHostException {
-        // create a key value storage
-        DB db = new DB();
-        // get the coordinator api
-        Transaction coordinator = (Transaction) Naming.lookup("rmi://"+ InetAddress.getByName(coordinatorHostname).getHostAddress() + ":" + coordinatorPort + "/Transaction");
+    public Server(String port, String coordinatorHostname, String coordinatorPort) throws IOException, AlreadyBoundException, NumberFormatException, NotBoundException, UnknownHostException {
+        // create a key value storage, a deleted key is kept a while to reject the late replays of its older commits
+        DB db = new DB(true, Long.getLong("server.tombstoneGrace", 60000));
+        // get the coordinator apis, several coordinators are given as comma separated hostnames and ports
+        Transport transport = Transport.fromSystemProperties();
+        String[] hostnames = coordinatorHostname.split(",");
+        String[] ports = coordinatorPort.split(",");
+        if (hostnames.length != ports.length) {
+            throw new NumberFormatException("Got " + hostnames.length + " coordinator hostnames and " + ports.length + " ports");
+        }
+        Map<String, Transaction> coordinators = new LinkedHashMap<>();
+        for (int i = 0; i < hostnames.length; i++) {
+            String ip = InetAddress.getByName(hostnames[i].trim()).getHostAddress();
+            int coordinatorPortNumber = Integer.parseInt(ports[i].trim());
+            // keyed by the address as configured, every server must split the keys the same way
+            // even if it resolves the hostname to another ip
+            coordinators.put(hostnames[i].trim() + ":" + coordinatorPortNumber, transport.lookup(ip, coordinatorPortNumber, "Transaction", Transaction.class));
+        }
+        // each coordinator owns a slice of the keys, the messages are routed to the owner of their keys
+        CoordinatorRouter coordinator = new CoordinatorRouter(coordinators, Integer.getInteger("server.coordinatorVirtualNodes", 128));
         // create stub
         String id = generateId(port);
-        Service stub = new ServiceImp(db, id, coordinator);
-        // bind the stub to registry
-        Registry registry = LocateRegistry.createRegistry(Integer.parseInt(port));
-        registry.bind("Service", stub);
-        log.info("Server started at port: " + port + " with id: " + id);
+        // load the latest snapshot, then recover the commits after it from the write-ahead log
+        Path dataDir = Paths.get(System.getProperty("server.dataDir", "data"));
+        Path snapshotFile = dataDir.resolve(id + ".snapshot");
+        Snapshot.load(snapshotFile, db);
+        WriteAheadLog wal = new WriteAheadLog(dataDir.resolve(id + ".wal"),
+                Durability.valueOf(System.getProperty("server.durability", Durability.GROUP.name())),
+                Long.getLong("server.asyncFlush", 10));
+        List<Message> inDoubt = wal.replay(db);
+        inDoubt.forEach((message) -> log.info("Message in doubt after restart: " + message));
+        // a prepared key is released after the lock timeout if it is never voted for commit,
+        // a voted one is kept and its decision is asked for after the lock timeout
+        long lockTimeout = Long.getLong("server.lockTimeout", 5000);
+        // a write waits for the votes, the decision and the acks of its transaction, the client of a request is kept as long
+        long writeTimeout = Long.getLong("server.writeTimeout", 10000);
+        ClientResponder responder = new ClientResponder(Integer.getInteger("server.clientCacheSize", 1024),
+                Long.getLong("server.clientIdleTimeout", 60000), writeTimeout);
+        ServiceImp stub = new ServiceImp(db, id, coordinator, lockTimeout, Long.getLong("server.lockWait", 300), writeTimeout, wal,
+                snapshotFile, Long.getLong("server.snapshotInterval", 60000), responder,
+                Integer.getInteger("server.scanPageSize", 1000), Long.getLong("server.collectInterval", 1000));
+        // the keys of the messages in doubt stay locked until the coordinator resolves them
+        stub.recover(inDoubt);
+        // export the stub by the transport
+        transport.export(Integer.parseInt(port), "Service", Service.class, stub);
+        log.info("Server started at port: " + port + " with id: " + id + ", coordinators: " + coordinator.size());
         // register at coordinator
-        coordinator.register(id, InetAddress.getLocalHost().getHostName(), Integer.parseInt(port));
+        coordinator.register(id, InetAddress.getLocalHost().getHostName(), Integer.parseInt(port), db);
+        try {
+            stub.resolveInDoubt();
+        } catch (RemoteException e) {
+            // the locks stay and the decisions are asked for again after the lock timeout
+            log.error("Failed in resolving " + inDoubt.size() + " messages in doubt with the coordinator");
+        }
     }
 
     /**
@@ -1,6 +1,7 @@
 package org.neu.server;
 
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.rmi.AlreadyBoundException;
@@ -27,9 +28,13 @@ public class ServerDriver {
             } catch (MalformedURLException | NotBoundException | UnknownHostException e) {
                 System.out.println("Cannot connect to the coordinator, please make sure the coordinator hostname and port are correct");
                 System.exit(1);
+            } catch (IOException e) {
+                System.out.println("Cannot open the write-ahead log, please check the data directory");
+                System.exit(1);
             }
         } else {
-            System.out.println("Please run the program: java -jar ServerDriver.jar <server port> <coordinator hostname> <coordinator port>");
+            System.out.println("Please run the program: java -jar ServerDriver.jar <server port> <coordinator hostname> <coordinator port>,"
+                    + " several coordinators are given as comma separated hostnames and ports");
         }
     }
 }
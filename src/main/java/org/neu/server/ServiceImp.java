@@ -1,27 +1,40 @@
 package org.neu.server;
 
 import lombok.extern.slf4j.Slf4j;
-import org.neu.api.Client;
 import org.neu.api.Service;
 import org.neu.api.Transaction;
 import org.neu.db.DB;
+import org.neu.db.ReadView;
+import org.neu.db.Snapshot;
+import org.neu.db.SnapshotCodec;
+import org.neu.db.WriteAheadLog;
+import org.neu.partition.HashRing;
 import org.neu.protocol.Message;
+import org.neu.protocol.Operation;
+import org.neu.protocol.Result;
+import org.neu.protocol.ScanPage;
+import org.neu.protocol.SnapshotChunk;
 import org.neu.protocol.Type;
 
-import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.UnknownHostException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Server implementation
  */
 @Slf4j
-public class ServiceImp extends UnicastRemoteObject implements Service {
+public class ServiceImp implements Service {
 
     // the database
     private final DB db;
@@ -32,14 +45,145 @@ public class ServiceImp extends UnicastRemoteObject implements Service {
     // the coordinator api
     private final Transaction coordinator;
 
-    // the current client that sent requests to this server
-    private final Map<String, Integer> currentClient;
+    // sends the results to the clients that sent the requests to this server
+    private final ClientResponder responder;
 
-    protected ServiceImp(DB db, String id, Transaction coordinator) throws RemoteException {
+    // time in milliseconds a write waits for its outcome
+    private final long writeTimeout;
+
+    // max number of entities of a page of a scan
+    private final int scanPageSize;
+
+    // locks of the keys in prepared transactions
+    private final LockTable locks;
+
+    // time in milliseconds a vote waits for the lock of a key held by a transaction with a higher id
+    private final long lockWait;
+
+    // timer to remove the expired locks
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    // writes the snapshots in the background
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor();
+
+    // the write-ahead log of the votes and decisions
+    private final WriteAheadLog wal;
+
+    // progress of each synchronization in progress
+    private final Map<UUID, SyncProgress> syncs;
+
+    // held shared from logging a commit until it is applied, held exclusively to find where a snapshot starts
+    private final ReadWriteLock applyLock;
+
+    // the snapshot file of the database
+    private final Path snapshotFile;
+
+    // size of the write-ahead log after the last snapshot
+    private volatile long snapshotLogSize;
+
+    // the messages voted for commit without a decision, by message id, their locks are pinned until it arrives
+    private final Map<UUID, Message> inDoubt;
+
+    // ids of the messages in doubt at the last check, only read and written by the timer
+    private Set<UUID> lastInDoubt;
+
+    protected ServiceImp(DB db, String id, Transaction coordinator, long lockTimeout, long lockWait, long writeTimeout, WriteAheadLog wal,
+                         Path snapshotFile, long snapshotInterval, ClientResponder responder, int scanPageSize, long collectInterval) {
         this.db = db;
+        this.wal = wal;
         this.id = id;
         this.coordinator = coordinator;
-        this.currentClient = new HashMap<>();
+        this.responder = responder;
+        this.writeTimeout = writeTimeout;
+        this.scanPageSize = scanPageSize;
+        this.locks = new LockTable(lockTimeout);
+        this.lockWait = lockWait;
+        this.syncs = new HashMap<>();
+        this.applyLock = new ReentrantReadWriteLock();
+        this.snapshotFile = snapshotFile;
+        this.snapshotLogSize = -1;
+        this.inDoubt = new ConcurrentHashMap<>();
+        this.lastInDoubt = Collections.emptySet();
+        timer.scheduleWithFixedDelay(locks::purge, lockTimeout, lockTimeout, TimeUnit.MILLISECONDS);
+        // a voted lock never expires, the decisions late for longer than the lock timeout are asked for
+        timer.scheduleWithFixedDelay(this::resolveLate, lockTimeout, lockTimeout, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(responder::purge, lockTimeout, lockTimeout, TimeUnit.MILLISECONDS);
+        // drop the versions of the keys no view reads any more
+        timer.scheduleWithFixedDelay(db::collect, collectInterval, collectInterval, TimeUnit.MILLISECONDS);
+        if (snapshotInterval > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshot, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Lock the keys of the messages prepared before a restart without a decision, so no conflicting message
+     * is accepted before they are resolved. Must be called before the server is exported.
+     *
+     * @param messages the messages in doubt replayed from the write-ahead log
+     */
+    void recover(List<Message> messages) {
+        for (Message message : messages) {
+            inDoubt.put(message.getMessageId(), message);
+            for (Operation operation : message.getOperations()) {
+                locks.tryLock(operation.getKey(), message.getMessageId());
+                locks.pin(operation.getKey(), message.getMessageId());
+            }
+        }
+    }
+
+    /**
+     * Ask the coordinator for the decisions of the messages in doubt and apply them, a message the coordinator
+     * is still deciding keeps its locks until its decision arrives
+     *
+     * @throws RemoteException if the coordinator cannot be reached
+     */
+    void resolveInDoubt() throws RemoteException {
+        resolve(new ArrayList<>(inDoubt.values()));
+    }
+
+    /**
+     * Ask the coordinator for the decisions of the messages in doubt since the last check,
+     * a message voted for commit keeps its locks until the decision arrives, however long it takes
+     */
+    private void resolveLate() {
+        List<Message> late = new ArrayList<>();
+        for (UUID messageId : lastInDoubt) {
+            Message message = inDoubt.get(messageId);
+            if (message != null) {
+                late.add(message);
+            }
+        }
+        lastInDoubt = new HashSet<>(inDoubt.keySet());
+        try {
+            resolve(late);
+        } catch (RemoteException e) {
+            log.error("Failed in resolving " + late.size() + " messages in doubt with the coordinator, ask again later");
+        }
+    }
+
+    /**
+     * Ask the coordinator for the decisions of some messages in doubt and apply them, a message the coordinator
+     * is still deciding keeps its locks until its decision arrives
+     *
+     * @param messages the messages in doubt
+     * @throws RemoteException if the coordinator cannot be reached
+     */
+    private void resolve(List<Message> messages) throws RemoteException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Map<UUID, Boolean> outcomes = coordinator.resolve(id, messages);
+        List<Message> commits = new ArrayList<>();
+        List<Message> aborts = new ArrayList<>();
+        outcomes.forEach((messageId, committed) -> {
+            Message message = inDoubt.remove(messageId);
+            if (message != null) {
+                (committed ? commits : aborts).add(message);
+            }
+        });
+        commitLocally(commits);
+        abortLocally(aborts);
+        log.info("Resolved the messages in doubt, commit: " + commits.size() + " abort: " + aborts.size() + " undecided: " + inDoubt.size());
     }
 
     @Override
@@ -56,10 +200,68 @@ public class ServiceImp extends UnicastRemoteObject implements Service {
         return result;
     }
 
+    @Override
+    public Map<String, String> doGetAll(Collection<String> keys) throws RemoteException {
+        log.info("Received the GET request of " + keys.size() + " keys");
+        Map<String, String> values = new HashMap<>();
+        if (keys.size() == 1) {
+            // a single key is read as it is latest, only a read of several keys needs a view
+            String key = keys.iterator().next();
+            String value = db.get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        } else {
+            // the keys are read at one commit sequence, a commit applied meanwhile is seen in all of them or none
+            try (ReadView view = db.openView()) {
+                for (String key : keys) {
+                    String value = view.get(key);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                }
+            }
+        }
+        log.info("Sent response for the GET request, " + values.size() + " of " + keys.size() + " keys found");
+        return values;
+    }
+
+    @Override
+    public ScanPage scan(String start, String end, String token, int limit) throws RemoteException {
+        log.info("Received the SCAN request: start: " + start + " end: " + end + " token: " + token);
+        // the token is the first key of the next page, it is always inside the range
+        if (token != null && (start == null || token.compareTo(start) > 0)) {
+            start = token;
+        }
+        // one more entity tells if there is a next page, and its key is the token of the next page
+        int size = Math.max(1, Math.min(limit, scanPageSize));
+        Map<String, String> entities;
+        // the page is read at one commit sequence, the pages of a scan may be at different ones
+        try (ReadView view = db.openView()) {
+            entities = view.scan(start, end, size + 1);
+        }
+        LinkedHashMap<String, String> page = new LinkedHashMap<>();
+        String next = null;
+        for (Map.Entry<String, String> entity : entities.entrySet()) {
+            if (page.size() == size) {
+                next = entity.getKey();
+                break;
+            }
+            page.put(entity.getKey(), entity.getValue());
+        }
+        log.info("Sent response for the SCAN request, " + page.size() + " entities, next: " + next);
+        return new ScanPage(page, next);
+    }
+
+    @Override
+    public ScanPage scanPrefix(String prefix, String token, int limit) throws RemoteException {
+        return scan(prefix, DB.prefixEnd(prefix), token, limit);
+    }
+
     @Override
     public void doPut(Message message, String hostname, int port) throws RemoteException {
         log.info("Received the PUT request from client id: " + message.getClientId() + ": key: " + message.getKey() + " value: " + message.getValue());
-        currentClient.put(hostname, port);
+        responder.expect(message, hostname, port);
         // call coordinator to start a transaction
         coordinator.requirePrepare(id ,message);
     }
@@ -67,96 +269,397 @@ public class ServiceImp extends UnicastRemoteObject implements Service {
     @Override
     public void doDelete(Message message, String hostname, int port) throws RemoteException {
         log.info("Received the DELETE request from client id: " + message.getClientId() + ": key: " + message.getKey());
-        currentClient.put(hostname, port);
+        responder.expect(message, hostname, port);
         // call coordinator to start a transaction
         coordinator.requirePrepare(id ,message);
     }
 
+    @Override
+    public Result write(Message message) throws RemoteException {
+        log.info("Received the " + message.getType() + " request from client id: " + message.getClientId() + ": key: " + message.getKey());
+        CompletableFuture<Result> outcome = responder.await(message);
+        try {
+            // call coordinator to start a transaction
+            coordinator.requirePrepare(id, message);
+            // the coordinator delivers the outcome once it is decided, even if this server missed the vote
+            return outcome.get(writeTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new RemoteException("Failed in waiting for the outcome of the message: " + message, e.getCause());
+        } catch (TimeoutException e) {
+            throw new RemoteException("The outcome of the message: " + message + " is unknown after " + writeTimeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted in waiting for the outcome of the message: " + message);
+        } finally {
+            responder.forget(message);
+        }
+    }
+
+    @Override
+    public List<Result> writeAll(List<Message> messages) throws RemoteException {
+        log.info("Received a batch of " + messages.size() + " requests");
+        List<CompletableFuture<Result>> outcomes = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            outcomes.add(responder.await(message));
+        }
+        try {
+            // call coordinator to start one transaction round for all the messages
+            coordinator.requirePrepareBatch(id, messages);
+            long deadline = System.currentTimeMillis() + writeTimeout;
+            List<Result> results = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                try {
+                    results.add(outcomes.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+                } catch (ExecutionException e) {
+                    throw new RemoteException("Failed in waiting for the outcome of the message: " + messages.get(i), e.getCause());
+                } catch (TimeoutException e) {
+                    throw new RemoteException("The outcome of the message: " + messages.get(i) + " is unknown after " + writeTimeout + " ms");
+                }
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted in waiting for the outcomes of a batch of " + messages.size() + " messages");
+        } finally {
+            messages.forEach(responder::forget);
+        }
+    }
+
+    @Override
+    public boolean subscribe(String hostname, int port) throws RemoteException {
+        log.info("Client at " + hostname + ":" + port + " subscribes to the invalidations");
+        return coordinator.subscribe(hostname, port);
+    }
+
     @Override
     public void prepare(Message message) throws RemoteException {
         log.info("Prepare for message: " + message);
-        // query locally
-        if (message.getType().equals(Type.PUT)) {
-            if (!db.isContain(message.getKey())) {
-                // call accept
-                log.info("Vote for COMMIT");
-                coordinator.accept(id, message);
-            } else {
-                // call reject
-                log.info("Vote for ABORT");
-                coordinator.reject(id, message);
-            }
+        if (vote(message, lockWait)) {
+            // the vote must be on the disk before the coordinator counts on it
+            sync();
+            // call accept
+            log.info("Vote for COMMIT");
+            coordinator.accept(id, message);
         } else {
-            // opposite logic for delete
-            if (db.isContain(message.getKey())) {
-                // call accept
-                log.info("Vote for COMMIT");
-                coordinator.accept(id, message);
-            } else {
-                // call reject
-                log.info("Vote for ABORT");
-                coordinator.reject(id, message);
-            }
+            // call reject
+            log.info("Vote for ABORT");
+            coordinator.reject(id, message);
         }
     }
 
+    @Override
+    public List<UUID> prepare(Message message, List<Message> commits, List<Message> aborts) throws RemoteException {
+        List<UUID> acks = new ArrayList<>(commits.size() + aborts.size());
+        // apply the decisions of earlier transactions first, their acks are returned with this call
+        List<String> committed = commitLocally(commits);
+        for (int i = 0; i < commits.size(); i++) {
+            log.info("Message committed, the message: " + commits.get(i));
+            responseTo(committed.get(i), commits.get(i), true);
+            acks.add(commits.get(i).getMessageId());
+        }
+        List<String> aborted = abortLocally(aborts);
+        for (int i = 0; i < aborts.size(); i++) {
+            log.info("Message aborted, the message: " + aborts.get(i));
+            responseTo(aborted.get(i), aborts.get(i), false);
+            acks.add(aborts.get(i).getMessageId());
+        }
+        prepare(message);
+        return acks;
+    }
+
     @Override
     public void commit(Message message) throws RemoteException {
-        String result = null;
-        // send ack
+        String result = commitLocally(Collections.singletonList(message)).get(0);
+        // send ack once the commit is on the disk
         coordinator.ackCommit(id, message);
         log.info("Message committed, the message: " + message);
-        switch (message.getType()) {
-            case PUT:
-                // do operation
-                db.put(message.getKey(), message.getValue());
-                result = "key: " + message.getKey() + " value: " + message.getValue() + " has been stored";
-                break;
-            case DELETE:
-                // do operation
-                db.delete(message.getKey());
-                result = "key: " + message.getKey() + " has been deleted";
-                break;
-        }
         // send response to the client
-        responseTo(result, message);
+        responseTo(result, message, true);
     }
 
     @Override
     public void abort(Message message) throws RemoteException {
-        String result;
         log.info("Message aborted, the message: " + message);
-        // send ack
-        coordinator.ackAbort(id, message);
-        if (message.getType().equals(Type.PUT)) {
-            result = "key: " + message.getKey() + " value: " + db.get(message.getKey()) + " is immutable";
-        } else {
-            result = "key: " + message.getKey() +  " is not found";
-        }
+        String result = abortLocally(Collections.singletonList(message)).get(0);
+        // no ack is sent, the coordinator presumes the abort
         // send the response to the client
-        responseTo(result, message);
+        responseTo(result, message, false);
+    }
+
+    @Override
+    public Map<UUID, Boolean> prepareBatch(List<Message> messages) throws RemoteException {
+        log.info("Prepare for a batch of " + messages.size() + " messages");
+        Map<UUID, Boolean> votes = new HashMap<>();
+        for (Message message : byId(messages)) {
+            // in the order of the ids a message only meets the locks of the lower ids of its batch and dies on them,
+            // so it only waits for the transactions of other batches
+            votes.put(message.getMessageId(), vote(message, lockWait));
+        }
+        // all votes of the batch share one disk flush
+        sync();
+        return votes;
     }
 
     /**
-     * Connect to the client and send the response to the client
+     * Sort the messages of a batch by id, the order the wait-die of the locks resolves their conflicts in
      *
-     * @param result the result of the request
-     * @param message the message of the request
+     * @param messages the messages
+     * @return the messages in the order of the ids
+     */
+    private static List<Message> byId(List<Message> messages) {
+        List<Message> sorted = new ArrayList<>(messages);
+        sorted.sort(Comparator.comparing(Message::getMessageId));
+        return sorted;
+    }
+
+    @Override
+    public Map<UUID, Boolean> commitOnePhase(List<Message> messages) throws RemoteException {
+        log.info("One-phase commit of " + messages.size() + " messages");
+        Map<UUID, Boolean> outcomes = new HashMap<>();
+        List<Message> accepted = new ArrayList<>(messages.size());
+        List<Message> rejected = new ArrayList<>();
+        for (Message message : byId(messages)) {
+            boolean accept = vote(message, lockWait);
+            outcomes.put(message.getMessageId(), accept);
+            (accept ? accepted : rejected).add(message);
+        }
+        // the votes and the commits share one disk flush
+        List<String> results = commitLocally(accepted);
+        for (int i = 0; i < accepted.size(); i++) {
+            responseTo(results.get(i), accepted.get(i), true);
+        }
+        for (Message message : rejected) {
+            responseTo(rejection(message), message, false);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Lock the keys of a message and vote for it, the locks are held until the decision arrives
+     * if voting for commit, otherwise they are released right away.
+     * A vote for commit is appended to the write-ahead log, the caller syncs it before sending.
+     *
+     * @param message the message to be transacted
+     * @param wait    max time in milliseconds to wait for each lock held by another transaction
+     * @return true for commit, false for abort
      */
-    private void responseTo(String result, Message message) {
-        if (!currentClient.isEmpty()) {
-            String clientHostname = new ArrayList<>(currentClient.keySet()).get(0);
-            Integer clientPort = new ArrayList<>(currentClient.values()).get(0);
-            currentClient.clear();
+    private boolean vote(Message message, long wait) {
+        List<Operation> operations = message.getOperations();
+        for (Operation operation : operations) {
+            // conflict with another transaction in progress on the same key
+            if (!locks.lock(operation.getKey(), message.getMessageId(), wait)) {
+                log.info("Key: " + operation.getKey() + " is locked by another transaction");
+                unlock(message);
+                return false;
+            }
+        }
+        // query locally, put needs an absent key and delete needs a present key,
+        // an earlier operation of the same transaction counts as done
+        boolean accept = true;
+        Map<String, Boolean> present = new HashMap<>();
+        for (Operation operation : operations) {
+            boolean put = operation.getType().equals(Type.PUT);
+            if (put == present.computeIfAbsent(operation.getKey(), db::isContain)) {
+                accept = false;
+                break;
+            }
+            present.put(operation.getKey(), put);
+        }
+        if (accept) {
             try {
-                Client client = (Client) Naming.lookup("rmi://"+ InetAddress.getByName(clientHostname).getHostAddress() + ":" + clientPort + "/Client");
-                client.setResponse(id, result, message);
-                log.info("Response sent: " + result);
-            } catch (NotBoundException | MalformedURLException | UnknownHostException | RemoteException e) {
-                // log if the client lost connection
-                log.error("Client with id: " + message.getClientId() + " lost connection in sending response of the result: " + result);
+                wal.append(WriteAheadLog.PREPARE, message);
+                // the coordinator may commit the message from now on, its locks are held until the decision
+                inDoubt.put(message.getMessageId(), message);
+                for (Operation operation : operations) {
+                    locks.pin(operation.getKey(), message.getMessageId());
+                }
+            } catch (IOException e) {
+                log.error("Failed in logging the vote of the message: " + message);
+                accept = false;
             }
         }
+        if (!accept) {
+            unlock(message);
+        }
+        return accept;
+    }
+
+    /**
+     * Release the locks of the keys of a message
+     *
+     * @param message the message
+     */
+    private void unlock(Message message) {
+        for (Operation operation : message.getOperations()) {
+            locks.unlock(operation.getKey(), message.getMessageId());
+        }
+    }
+
+    @Override
+    public void commitBatch(List<Message> messages) throws RemoteException {
+        log.info("Batch of " + messages.size() + " messages committed");
+        List<String> results = commitLocally(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            responseTo(results.get(i), messages.get(i), true);
+        }
+    }
+
+    @Override
+    public void abortBatch(List<Message> messages) throws RemoteException {
+        log.info("Batch of " + messages.size() + " messages aborted");
+        List<String> results = abortLocally(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            responseTo(results.get(i), messages.get(i), false);
+        }
+    }
+
+    @Override
+    public void deliver(Result result, Message message) throws RemoteException {
+        log.info("Outcome of the message delivered by the coordinator: " + result);
+        responder.respond(result, message);
+    }
+
+    /**
+     * Log the commit of the messages, then apply them to the database once the log is on the disk
+     *
+     * @param messages the committed messages
+     * @return the result of each message to the client
+     * @throws RemoteException if the commit cannot be logged
+     */
+    private List<String> commitLocally(List<Message> messages) throws RemoteException {
+        List<String> results = new ArrayList<>(messages.size());
+        if (messages.isEmpty()) {
+            return results;
+        }
+        applyLock.readLock().lock();
+        try {
+            try {
+                for (Message message : messages) {
+                    wal.append(WriteAheadLog.COMMIT, message);
+                }
+            } catch (IOException e) {
+                throw new RemoteException("Failed in logging the commit", e);
+            }
+            // the commits share one disk flush
+            sync();
+            for (Message message : messages) {
+                results.add(apply(message));
+            }
+        } finally {
+            applyLock.readLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Log the abort of the messages without waiting for the disk, an abort lost in a crash
+     * leaves the message in doubt and it is presumed aborted
+     *
+     * @param messages the aborted messages
+     * @return the result of each message to the client
+     */
+    private List<String> abortLocally(List<Message> messages) {
+        List<String> results = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                wal.append(WriteAheadLog.ABORT, message);
+            } catch (IOException e) {
+                log.error("Failed in logging the abort of the message: " + message);
+            }
+            inDoubt.remove(message.getMessageId());
+            results.add(rejection(message));
+        }
+        return results;
+    }
+
+    /**
+     * Save the database to the snapshot file in the background
+     */
+    private void snapshot() {
+        try {
+            snapshot(false);
+        } catch (IOException e) {
+            log.error("Failed in writing the snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Save the database to the snapshot file and drop the log records it covers. Every commit logged before
+     * the start position is applied before the database is read, so loading the snapshot and replaying the log
+     * from that position restores the database. The commits only wait while the position is taken.
+     * Must run on the snapshotter.
+     *
+     * @param force true to write the snapshot even if nothing is logged since the last one
+     * @throws IOException error in writing the snapshot
+     */
+    private void snapshot(boolean force) throws IOException {
+        long start;
+        applyLock.writeLock().lock();
+        try {
+            start = wal.position();
+        } finally {
+            applyLock.writeLock().unlock();
+        }
+        // nothing is logged since the last snapshot
+        if (!force && start == snapshotLogSize) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long count = Snapshot.write(db, snapshotFile);
+        snapshotLogSize = wal.truncate(start);
+        log.info("Snapshot of " + count + " entities written in " + (System.currentTimeMillis() - begin) + " ms, "
+                + start + " bytes of the write-ahead log dropped");
+    }
+
+    /**
+     * Wait until the appended log records are on the disk
+     *
+     * @throws RemoteException if the log cannot be flushed
+     */
+    private void sync() throws RemoteException {
+        try {
+            wal.sync();
+        } catch (IOException e) {
+            throw new RemoteException("Failed in flushing the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Apply a committed message to the database and release the locks of its keys,
+     * the operations of a transaction are applied at once
+     *
+     * @param message the committed message
+     * @return the result to the client
+     */
+    private String apply(Message message) {
+        // do operation, a key already written by a later commit keeps its value
+        db.writeAll(message.getChanges(), message.getLsn());
+        db.advanceLsn(message.getLsn());
+        unlock(message);
+        inDoubt.remove(message.getMessageId());
+        return Result.describe(message, true, null);
+    }
+
+    /**
+     * Get the result of an aborted message and release the locks of its keys
+     *
+     * @param message the aborted message
+     * @return the result to the client
+     */
+    private String rejection(Message message) {
+        unlock(message);
+        return Result.describe(message, false, message.getType().equals(Type.PUT) ? db.get(message.getKey()) : null);
+    }
+
+    /**
+     * Send the response to the client if the request was sent to this server
+     *
+     * @param result the result of the request
+     * @param message the message of the request
+     * @param committed true if the message is committed
+     */
+    private void responseTo(String result, Message message, boolean committed) {
+        responder.respond(new Result(message.getMessageId(), id, committed, result), message);
     }
 
     @Override
@@ -165,10 +668,75 @@ public class ServiceImp extends UnicastRemoteObject implements Service {
     }
 
     @Override
-    public void sync(Map<String, String> data) throws RemoteException {
+    public HashRing getRing() throws RemoteException {
+        return coordinator.getRing();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() throws RemoteException {
+        return coordinator.getCounters();
+    }
+
+    @Override
+    public void catchUp(List<Message> messages) throws RemoteException {
+        // replay the missed commits in order, a page may arrive after a later commit of the same keys went live,
+        // so a key keeps the value of the latest commit applied to it
+        commitLocally(messages);
+        log.info("Caught up " + messages.size() + " commits from the coordinator, latest lsn: " + db.getLsn());
+    }
+
+    @Override
+    public long syncChunk(SnapshotChunk chunk) throws RemoteException {
         // synchronize the data the with the coordinator if the server was absent in transactions
-        db.addAll(data);
-        log.info("Synchronized the data from the coordinator");
+        synchronized (syncs) {
+            // the writes before the first chunk are older than the synchronized data
+            SyncProgress progress = syncs.computeIfAbsent(chunk.getSyncId(), (k) -> new SyncProgress(db.getSequence()));
+            // a chunk stored before is only acknowledged again, its reply was lost
+            if (chunk.getOffset() == progress.stored) {
+                try {
+                    // a key committed since the first chunk is newer than the data of the coordinator
+                    progress.stored += SnapshotCodec.decode(chunk.getData(), (key, value) -> db.writeIfUnchangedSince(key, value, progress.start));
+                } catch (IOException e) {
+                    throw new RemoteException("Failed in decoding the chunk: " + chunk, e);
+                }
+            }
+            if (chunk.isLast() && progress.stored == chunk.getOffset() + chunk.getCount()) {
+                // a key neither sent nor committed since the first chunk was deleted while this server was away
+                int deleted = chunk.isWhole() ? db.deleteUnchangedSince(progress.start) : 0;
+                db.advanceLsn(chunk.getLsn());
+                // the synchronized data is in no log, it is saved before the coordinator counts on it
+                try {
+                    snapshotter.submit(() -> {
+                        snapshot(true);
+                        return null;
+                    }).get();
+                } catch (ExecutionException e) {
+                    throw new RemoteException("Failed in saving the synchronized data", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted in saving the synchronized data");
+                }
+                syncs.remove(chunk.getSyncId());
+                log.info("Synchronized " + progress.stored + " entities from the coordinator, " + deleted + " stale keys deleted");
+            }
+            return progress.stored;
+        }
+    }
+
+    /**
+     * Progress of a synchronization of the whole data
+     */
+    private static class SyncProgress {
+
+        // the sequence of the latest write of the database before the first chunk
+        private final long start;
+
+        // number of entities stored
+        private long stored;
+
+        private SyncProgress(long start) {
+            this.start = start;
+        }
     }
 
 }
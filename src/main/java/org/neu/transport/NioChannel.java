@@ -0,0 +1,242 @@
+package org.neu.transport;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection of the NIO transport carrying frames of [length][body]. One sender at a time writes,
+ * the frames other senders queue meanwhile go out together in its next gathering write,
+ * and the loop thread takes over the writing when the socket is full.
+ */
+public class NioChannel {
+
+    // the max number of frames in one gathering write
+    private static final int MAX_GATHER = 64;
+
+    // the max size of a frame, a larger length means the peer does not speak this protocol
+    private static final int MAX_FRAME = 64 << 20;
+
+    // the socket
+    @Getter
+    private final SocketChannel socket;
+
+    // the loop doing the reads and writes
+    private final NioLoop loop;
+
+    // receives the frames and the close
+    private final FrameHandler handler;
+
+    // frames queued by the senders
+    private final Queue<ByteBuffer> outbound;
+
+    // frames taken from the queue and not fully written, used by the holder of the flushing flag only
+    private final ArrayDeque<ByteBuffer> writing;
+
+    // whether a sender or the loop thread is writing
+    private final AtomicBoolean flushing;
+
+    // whether the channel is closed
+    private final AtomicBoolean closed;
+
+    // buffer of the bytes read and not yet framed, used by the loop thread only
+    private ByteBuffer readBuffer;
+
+    // the selection key, set by the loop thread
+    private SelectionKey key;
+
+    // whether the socket was full before the key was set, used by the loop thread only
+    private boolean awaiting;
+
+    public NioChannel(SocketChannel socket, NioLoop loop, FrameHandler handler) {
+        this.socket = socket;
+        this.loop = loop;
+        this.handler = handler;
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.writing = new ArrayDeque<>();
+        this.flushing = new AtomicBoolean();
+        this.closed = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(1 << 16);
+    }
+
+    /**
+     * Send a frame. The sender writes it right away if no one else is writing, otherwise it is queued
+     * and written with the other frames queued before the writer gets to it
+     *
+     * @param body body of the frame
+     */
+    public void send(ByteBuffer body) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + body.remaining());
+        frame.putInt(body.remaining()).put(body).flip();
+        outbound.add(frame);
+        if (flushing.compareAndSet(false, true)) {
+            try {
+                if (!drain()) {
+                    // the socket is full, the loop continues when it is writable
+                    loop.execute(this::awaitWritable);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+    }
+
+    /**
+     * Continue writing once the socket is writable, called by the loop thread
+     *
+     * @throws IOException error in writing
+     */
+    void flush() throws IOException {
+        if (drain()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Wait for the socket to be writable, called by the loop thread
+     */
+    private void awaitWritable() {
+        if (key == null) {
+            // the channel is not registered yet, the writing continues once it is
+            awaiting = true;
+        } else if (key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Write the queued frames in gathering writes until the queue is empty or the socket is full,
+     * must be called by the thread that set the flushing flag
+     *
+     * @return true if every frame is written and the flag is released, false if the socket is full
+     * @throws IOException error in writing
+     */
+    private boolean drain() throws IOException {
+        while (true) {
+            ByteBuffer frame;
+            while (writing.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+                writing.add(frame);
+            }
+            if (writing.isEmpty()) {
+                flushing.set(false);
+                // a frame queued after the poll found the flag still set, take it over
+                if (outbound.isEmpty() || !flushing.compareAndSet(false, true)) {
+                    return true;
+                }
+                continue;
+            }
+            socket.write(writing.toArray(new ByteBuffer[0]));
+            while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                writing.poll();
+            }
+            if (!writing.isEmpty()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Read the available bytes and pass each complete frame to the handler, called by the loop thread
+     *
+     * @throws IOException error in reading or the peer closed the connection
+     */
+    void read() throws IOException {
+        if (socket.read(readBuffer) < 0) {
+            close(new IOException("Connection closed by the peer"));
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > MAX_FRAME) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                break;
+            }
+            readBuffer.getInt();
+            byte[] body = new byte[length];
+            readBuffer.get(body);
+            handler.onFrame(this, ByteBuffer.wrap(body));
+        }
+        readBuffer.compact();
+        // make room for a frame larger than the buffer
+        if (readBuffer.position() >= 4) {
+            int needed = 4 + readBuffer.getInt(0);
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Set the selection key once the channel is registered, called by the loop thread
+     *
+     * @param key the selection key
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (awaiting) {
+            awaiting = false;
+            awaitWritable();
+        }
+    }
+
+    /**
+     * Check if the channel is closed
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Close the channel and tell the handler
+     *
+     * @param cause why the channel is closed
+     */
+    public void close(IOException cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        handler.onClose(this, cause);
+    }
+
+    /**
+     * Receives the frames of a channel
+     */
+    public interface FrameHandler {
+
+        /**
+         * Called by the loop thread for each complete frame
+         *
+         * @param channel the channel
+         * @param body    body of the frame
+         */
+        void onFrame(NioChannel channel, ByteBuffer body);
+
+        /**
+         * Called once when the channel is closed
+         *
+         * @param channel the channel
+         * @param cause   why the channel is closed
+         */
+        void onClose(NioChannel channel, IOException cause);
+    }
+}
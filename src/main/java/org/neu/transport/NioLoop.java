@@ -0,0 +1,130 @@
+package org.neu.transport;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Single selector thread doing every read and write of the NIO transport,
+ * other threads hand their work to it as tasks
+ */
+@Slf4j
+public class NioLoop implements Runnable {
+
+    // the selector of every channel
+    private final Selector selector;
+
+    // work handed over by other threads
+    private final Queue<Runnable> tasks;
+
+    public NioLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task in the loop thread
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accept the connections of a server socket, each one is wrapped by the factory
+     *
+     * @param server  the server socket
+     * @param factory wrap an accepted connection
+     */
+    public void listen(ServerSocketChannel server, Function<SocketChannel, NioChannel> factory) {
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT, factory);
+            } catch (IOException e) {
+                log.error("Failed in listening on " + server, e);
+            }
+        });
+    }
+
+    /**
+     * Start reading a connected channel
+     *
+     * @param channel the channel
+     */
+    public void register(NioChannel channel) {
+        execute(() -> {
+            try {
+                channel.setKey(channel.getSocket().register(selector, SelectionKey.OP_READ, channel));
+            } catch (IOException e) {
+                channel.close(e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    NioChannel channel = (NioChannel) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            channel.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            channel.flush();
+                        }
+                    } catch (IOException e) {
+                        channel.close(e);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Failed in selecting the channels", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) {
+        try {
+            SocketChannel socket = ((ServerSocketChannel) key.channel()).accept();
+            if (socket == null) {
+                return;
+            }
+            socket.configureBlocking(false);
+            socket.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            NioChannel channel = ((Function<SocketChannel, NioChannel>) key.attachment()).apply(socket);
+            channel.setKey(socket.register(selector, SelectionKey.OP_READ, channel));
+        } catch (IOException e) {
+            log.error("Failed in accepting a connection", e);
+        }
+    }
+}
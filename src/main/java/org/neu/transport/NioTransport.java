@@ -0,0 +1,440 @@
+package org.neu.transport;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.AlreadyBoundException;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport by a binary protocol over non-blocking sockets. Every call carries a request id,
+ * so one connection to a host carries many outstanding calls and the responses come back in any order.
+ * A request is [REQUEST][request id][api name][method index][argument count][arguments],
+ * a response is [RESPONSE][request id][status][result or exception], the values are written by WireCodec.
+ * A call runs the method handle at its index bound to the implementation, on a bounded pool of dispatchers.
+ */
+@Slf4j
+public class NioTransport implements Transport {
+
+    // frame kinds
+    private static final byte REQUEST = 1;
+    private static final byte RESPONSE = 2;
+
+    // response status
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+
+    // time in milliseconds to wait for a connection
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    // time in milliseconds to wait for the response of a call, 0 waits forever
+    private final long callTimeout;
+
+    // the selector thread of every connection
+    private NioLoop loop;
+
+    // runs the calls received, a call beyond the max number of dispatchers is refused
+    private final ExecutorService dispatcher;
+
+    // the exported apis on each port by name
+    private final Map<Integer, Map<String, Exported>> exports;
+
+    // the connection to each host and port
+    private final Map<String, Connection> connections;
+
+    public NioTransport(long callTimeout, int dispatchers) {
+        this.callTimeout = callTimeout;
+        // no queue, a queued call could wait for a dispatcher held by a call waiting for it
+        this.dispatcher = new ThreadPoolExecutor(0, dispatchers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "nio-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.exports = new ConcurrentHashMap<>();
+        this.connections = new HashMap<>();
+    }
+
+    @Override
+    public <T extends Remote> void export(int port, String name, Class<T> api, T implementation) throws IOException, AlreadyBoundException {
+        Map<String, Exported> apis;
+        synchronized (exports) {
+            apis = exports.get(port);
+            if (apis == null) {
+                apis = new ConcurrentHashMap<>();
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+                Map<String, Exported> served = apis;
+                loop().listen(server, (socket) -> new NioChannel(socket, loop, new Server(served)));
+                exports.put(port, apis);
+            }
+        }
+        Exported exported;
+        try {
+            exported = new Exported(implementation, methods(api));
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot call the methods of " + api.getName(), e);
+        }
+        if (apis.putIfAbsent(name, exported) != null) {
+            throw new AlreadyBoundException(name + " is already exported on port: " + port);
+        }
+    }
+
+    @Override
+    public <T extends Remote> T lookup(String host, int port, String name, Class<T> api) throws RemoteException {
+        // connect now, so an unreachable host is found like by the registry lookup
+        connect(host, port);
+        return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[]{api}, new Stub(host, port, name, methods(api))));
+    }
+
+    /**
+     * Get the connection to a host, connect again if it is closed
+     *
+     * @param host the host
+     * @param port the port
+     * @return the connection
+     * @throws RemoteException if the host cannot be reached
+     */
+    private synchronized Connection connect(String host, int port) throws RemoteException {
+        String address = host + ":" + port;
+        Connection connection = connections.get(address);
+        if (connection != null && !connection.channel.isClosed()) {
+            return connection;
+        }
+        try {
+            SocketChannel socket = SocketChannel.open();
+            socket.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection = new Connection();
+            connection.channel = new NioChannel(socket, loop(), connection);
+            loop.register(connection.channel);
+            connections.put(address, connection);
+            return connection;
+        } catch (IOException e) {
+            throw new ConnectException("Cannot connect to host: " + host + " port: " + port, e);
+        }
+    }
+
+    private synchronized NioLoop loop() throws IOException {
+        if (loop == null) {
+            loop = new NioLoop("nio-loop");
+        }
+        return loop;
+    }
+
+    /**
+     * The methods of a remote interface indexed in the same order on both ends
+     *
+     * @param api the remote interface
+     * @return the methods
+     */
+    private static Method[] methods(Class<?> api) {
+        Method[] methods = api.getMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::toGenericString));
+        return methods;
+    }
+
+    /**
+     * An exported implementation with the handles of the methods of its remote interface
+     */
+    private static class Exported {
+
+        // the methods bound to the implementation by index, each takes the arguments as an array
+        private final MethodHandle[] handles;
+
+        private Exported(Object implementation, Method[] methods) throws IllegalAccessException {
+            this.handles = new MethodHandle[methods.length];
+            MethodType spread = MethodType.methodType(Object.class, Object[].class);
+            for (int i = 0; i < methods.length; i++) {
+                handles[i] = MethodHandles.publicLookup().unreflect(methods[i]).bindTo(implementation)
+                        .asSpreader(Object[].class, methods[i].getParameterCount()).asType(spread);
+            }
+        }
+    }
+
+    /**
+     * Server end of a connection, runs each call on the dispatcher and sends back its result
+     */
+    private class Server implements NioChannel.FrameHandler {
+
+        // the exported apis by name
+        private final Map<String, Exported> apis;
+
+        private Server(Map<String, Exported> apis) {
+            this.apis = apis;
+        }
+
+        @Override
+        public void onFrame(NioChannel channel, ByteBuffer body) {
+            try {
+                dispatcher.execute(() -> call(channel, body));
+            } catch (RejectedExecutionException e) {
+                // every dispatcher is busy, refuse the call instead of queueing it
+                respond(channel, body.getLong(1), ERROR, new RemoteException("No dispatcher is free to run the call"));
+            }
+        }
+
+        /**
+         * Run a call and send back its result
+         *
+         * @param channel the channel of the call
+         * @param body    the request
+         */
+        private void call(NioChannel channel, ByteBuffer body) {
+            long requestId = -1;
+            byte status = OK;
+            Object result;
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+                if (in.readByte() != REQUEST) {
+                    throw new IOException("Unexpected frame");
+                }
+                requestId = in.readLong();
+                String name = in.readUTF();
+                int index = in.readShort();
+                Object[] args = new Object[in.readUnsignedByte()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = WireCodec.read(in);
+                }
+                Exported exported = apis.get(name);
+                if (exported == null) {
+                    throw new NoSuchObjectException(name + " is not exported");
+                }
+                if (index < 0 || index >= exported.handles.length) {
+                    throw new NoSuchObjectException(name + " has no method at index: " + index);
+                }
+                try {
+                    result = (Object) exported.handles[index].invokeExact(args);
+                } catch (Throwable e) {
+                    // thrown by the method, sent back as it is
+                    status = ERROR;
+                    result = e;
+                }
+            } catch (Exception e) {
+                status = ERROR;
+                result = e instanceof RemoteException ? e : new RemoteException("Failed in running the call", e);
+            }
+            if (requestId < 0) {
+                log.error("Dropped a malformed request: " + result);
+                return;
+            }
+            respond(channel, requestId, status, result);
+        }
+
+        /**
+         * Send the response of a call
+         *
+         * @param channel   the channel of the call
+         * @param requestId the request id
+         * @param status    OK or ERROR
+         * @param result    the result or the exception
+         */
+        private void respond(NioChannel channel, long requestId, byte status, Object result) {
+            try {
+                channel.send(encode(RESPONSE, requestId, (out) -> {
+                    out.writeByte(status);
+                    WireCodec.write(out, result);
+                }));
+            } catch (IOException e) {
+                // the result cannot be serialized, the caller still gets a response
+                try {
+                    channel.send(encode(RESPONSE, requestId, (out) -> {
+                        out.writeByte(ERROR);
+                        WireCodec.write(out, new RemoteException("Failed in encoding the response", e));
+                    }));
+                } catch (IOException ignored) {
+                    log.error("Failed in encoding the response of request: " + requestId, e);
+                }
+            }
+        }
+
+        @Override
+        public void onClose(NioChannel channel, IOException cause) {
+            // the calls still running have nowhere to respond
+        }
+    }
+
+    /**
+     * Client end of a connection, matches the responses to the outstanding calls by request id
+     */
+    private static class Connection implements NioChannel.FrameHandler {
+
+        // the next request id
+        private final AtomicLong ids = new AtomicLong();
+
+        // the outstanding calls by request id
+        private final Map<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+
+        // the channel
+        private NioChannel channel;
+
+        @Override
+        public void onFrame(NioChannel channel, ByteBuffer body) {
+            CompletableFuture<ByteBuffer> call = pending.remove(body.getLong(1));
+            if (call != null) {
+                call.complete(body);
+            }
+        }
+
+        @Override
+        public void onClose(NioChannel channel, IOException cause) {
+            pending.values().forEach((call) -> call.completeExceptionally(cause));
+            pending.clear();
+        }
+    }
+
+    /**
+     * Client stub of a remote interface
+     */
+    private class Stub implements InvocationHandler {
+
+        // the host
+        private final String host;
+
+        // the port
+        private final int port;
+
+        // the name of the api
+        private final String name;
+
+        // the index of each method
+        private final Map<Method, Integer> indexes;
+
+        // the connection of the latest call
+        private volatile Connection connection;
+
+        private Stub(String host, int port, String name, Method[] methods) {
+            this.host = host;
+            this.port = port;
+            this.name = name;
+            this.indexes = new HashMap<>();
+            for (int i = 0; i < methods.length; i++) {
+                indexes.put(methods[i], i);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "NioStub[" + name + "@" + host + ":" + port + "]";
+                }
+            }
+            Connection connection = this.connection;
+            if (connection == null || connection.channel.isClosed()) {
+                connection = connect(host, port);
+                this.connection = connection;
+            }
+            long requestId = connection.ids.incrementAndGet();
+            CompletableFuture<ByteBuffer> call = new CompletableFuture<>();
+            connection.pending.put(requestId, call);
+            short index = indexes.get(method).shortValue();
+            Object[] arguments = args == null ? new Object[0] : args;
+            connection.channel.send(encode(REQUEST, requestId, (out) -> {
+                out.writeUTF(name);
+                out.writeShort(index);
+                out.writeByte(arguments.length);
+                for (Object argument : arguments) {
+                    WireCodec.write(out, argument);
+                }
+            }));
+            // the channel may have closed before the call was added
+            if (connection.channel.isClosed()) {
+                connection.pending.remove(requestId);
+                call.completeExceptionally(new IOException("Connection closed"));
+            }
+            ByteBuffer response;
+            try {
+                response = callTimeout > 0 ? call.get(callTimeout, TimeUnit.MILLISECONDS) : call.get();
+            } catch (ExecutionException e) {
+                throw new ConnectException("Connection to " + name + " at host: " + host + " port: " + port + " is lost", (Exception) e.getCause());
+            } catch (TimeoutException e) {
+                connection.pending.remove(requestId);
+                throw new RemoteException("No response from " + name + " at host: " + host + " port: " + port + " in " + callTimeout + " ms");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(response.array()));
+            in.skipBytes(9);
+            byte status = in.readByte();
+            Object result = WireCodec.read(in);
+            if (status == OK) {
+                return result;
+            }
+            Throwable error = (Throwable) result;
+            if (error instanceof RuntimeException || error instanceof Error || error instanceof RemoteException) {
+                throw error;
+            }
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(error)) {
+                    throw error;
+                }
+            }
+            throw new UnexpectedException("Undeclared exception from " + method.getName(), (Exception) error);
+        }
+    }
+
+    /**
+     * Write the content of a frame after the request id
+     */
+    @FunctionalInterface
+    private interface ContentWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encode a frame body as [kind][request id][content]
+     *
+     * @param kind      REQUEST or RESPONSE
+     * @param requestId the request id
+     * @param content   writes the call and its arguments of a request, or the status and the result of a response
+     * @return the frame body
+     * @throws IOException if a value cannot be encoded
+     */
+    private static ByteBuffer encode(byte kind, long requestId, ContentWriter content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeLong(requestId);
+        content.write(out);
+        out.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
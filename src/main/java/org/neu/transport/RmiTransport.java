@@ -0,0 +1,42 @@
+package org.neu.transport;
+
+import java.net.MalformedURLException;
+import java.rmi.AlreadyBoundException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport by RMI, an implementation is exported on the port and bound in a registry created on it,
+ * so an implementation is reachable by RMI only if this transport is chosen
+ */
+public class RmiTransport implements Transport {
+
+    // the registry created on each port
+    private final Map<Integer, Registry> registries = new ConcurrentHashMap<>();
+
+    @Override
+    public <T extends Remote> void export(int port, String name, Class<T> api, T implementation) throws RemoteException, AlreadyBoundException {
+        Registry registry = registries.get(port);
+        if (registry == null) {
+            registry = LocateRegistry.createRegistry(port);
+            registries.put(port, registry);
+        }
+        registry.bind(name, UnicastRemoteObject.exportObject(implementation, port));
+    }
+
+    @Override
+    public <T extends Remote> T lookup(String host, int port, String name, Class<T> api) throws RemoteException, NotBoundException {
+        try {
+            return api.cast(Naming.lookup("rmi://" + host + ":" + port + "/" + name));
+        } catch (MalformedURLException e) {
+            throw new RemoteException("Invalid address of " + name + " at host: " + host + " port: " + port, e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.neu.transport;
+
+import java.io.IOException;
+import java.rmi.AlreadyBoundException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * How the remote apis are exported and looked up, either by RMI or by the NIO binary protocol.
+ * Both ends of a connection must use the same transport.
+ */
+public interface Transport {
+
+    /**
+     * Make an implementation reachable by name on the port
+     *
+     * @param port           the port to listen on
+     * @param name           the name of the api
+     * @param api            the remote interface
+     * @param implementation the implementation
+     * @param <T>            type of the remote interface
+     * @throws IOException           if the port cannot be listened on
+     * @throws AlreadyBoundException if the name is taken on the port
+     */
+    <T extends Remote> void export(int port, String name, Class<T> api, T implementation) throws IOException, AlreadyBoundException;
+
+    /**
+     * Get a stub of a remote api
+     *
+     * @param host the host
+     * @param port the port
+     * @param name the name of the api
+     * @param api  the remote interface
+     * @param <T>  type of the remote interface
+     * @return the stub
+     * @throws RemoteException   if the host cannot be reached
+     * @throws NotBoundException if nothing is exported by the name
+     */
+    <T extends Remote> T lookup(String host, int port, String name, Class<T> api) throws RemoteException, NotBoundException;
+
+    /**
+     * Choose the transport with the system property transport, rmi by default or nio
+     *
+     * @return the transport
+     */
+    static Transport fromSystemProperties() {
+        String transport = System.getProperty("transport", "rmi");
+        switch (transport) {
+            case "rmi":
+                return new RmiTransport();
+            case "nio":
+                return new NioTransport(Long.getLong("transport.callTimeout", 30000), Integer.getInteger("transport.dispatchers", 256));
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+    }
+}
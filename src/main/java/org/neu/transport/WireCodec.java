@@ -0,0 +1,181 @@
+package org.neu.transport;
+
+import org.neu.protocol.Message;
+import org.neu.protocol.MessageCodec;
+import org.neu.protocol.Result;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary layout of the arguments and the results of the NIO calls, a value is [tag][content].
+ * The messages are written by MessageCodec, the strings, numbers, ids, lists, maps and results by their own
+ * layout, only the other values such as the ring, the pages and the exceptions fall back to the serialization
+ * of Java, so the calls of the transactions never open an object stream
+ */
+final class WireCodec {
+
+    // value tags
+    private static final byte NULL = 0;
+    private static final byte MESSAGE = 1;
+    private static final byte STRING = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte UUID_TAG = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+    private static final byte RESULT = 9;
+    private static final byte SERIALIZED = 10;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Write a value with its tag
+     *
+     * @param out   the output
+     * @param value the value
+     * @throws IOException error in writing, or the value cannot be serialized
+     */
+    static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Message) {
+            out.writeByte(MESSAGE);
+            MessageCodec.write(out, (Message) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            MessageCodec.writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_TAG);
+            writeUuid(out, (UUID) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                write(out, element);
+            }
+        } else if (value.getClass() == LinkedHashMap.class || value.getClass() == HashMap.class) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (value instanceof Result) {
+            Result result = (Result) value;
+            out.writeByte(RESULT);
+            out.writeBoolean(result.getMessageId() != null);
+            if (result.getMessageId() != null) {
+                writeUuid(out, result.getMessageId());
+            }
+            MessageCodec.writeString(out, result.getServerId());
+            out.writeBoolean(result.isCommitted());
+            MessageCodec.writeString(out, result.getResponse());
+        } else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+            objects.writeObject(value);
+            objects.flush();
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Read a value written by write, a list is read as an ArrayList and a map as a LinkedHashMap
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException error in reading, or the value cannot be deserialized
+     */
+    static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case MESSAGE:
+                return MessageCodec.read(in);
+            case STRING:
+                return MessageCodec.readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readBoolean();
+            case UUID_TAG:
+                return readUuid(in);
+            case LIST: {
+                int size = count(in);
+                List<Object> list = new ArrayList<>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case MAP: {
+                int size = count(in);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(read(in), read(in));
+                }
+                return map;
+            }
+            case RESULT:
+                return new Result(in.readBoolean() ? readUuid(in) : null, MessageCodec.readString(in), in.readBoolean(), MessageCodec.readString(in));
+            case SERIALIZED: {
+                byte[] bytes = new byte[count(in)];
+                in.readFully(bytes);
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class of a value", e);
+                }
+            }
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static int count(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid size: " + count);
+        }
+        return count;
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}